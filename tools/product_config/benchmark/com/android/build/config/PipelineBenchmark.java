@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Benchmarks for each stage of product config, run on a checked in dumpconfig.mk
+ * output.
+ * <p>
+ * The fixture has the inherit graph and assignments of aosp_arm64 from
+ * build/make/target/product, written the way dumpconfig.mk writes them, with both the
+ * PRODUCTS and PRODUCT-EXPAND phases. Each stage after the first starts from the
+ * output of the one before it, which is computed once in setup().
+ * <p>
+ * Run with:
+ * <pre>
+ *   m product-config-benchmark
+ *   java -jar out/host/linux-x86/framework/product-config-benchmark.jar
+ * </pre>
+ * Standard JMH options can be passed on the command line, for example a regexp to pick
+ * benchmarks, or -prof gc to also measure allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final String FIXTURE = "dumpconfig_aosp_arm64.csv.gz";
+
+    private String mCsv;
+    private ByteBuffer mCsvBytes;
+    private Map<String, MakeConfig> mMakeConfigs;
+    private GenericConfig mGenericConfig;
+    private FlatConfig mFlatConfig;
+
+    @Setup
+    public void setup() throws IOException, CsvParser.ParseException {
+        final byte[] bytes = readFixture();
+        mCsv = new String(bytes, StandardCharsets.UTF_8);
+        mCsvBytes = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+
+        final Errors errors = new Errors();
+        mMakeConfigs = DumpConfigParser.parse(errors, FIXTURE, mCsvBytes.duplicate());
+        mGenericConfig = new ConvertMakeToGenericConfig(errors).convert(mMakeConfigs);
+        mFlatConfig = FlattenConfig.flatten(errors, mGenericConfig);
+        if (errors.hadError()) {
+            errors.printErrors(System.err);
+            throw new RuntimeException("Errors processing " + FIXTURE);
+        }
+    }
+
+    private static byte[] readFixture() throws IOException {
+        final InputStream resource = PipelineBenchmark.class.getResourceAsStream("/" + FIXTURE);
+        if (resource == null) {
+            throw new IOException("Missing resource: " + FIXTURE);
+        }
+        try (InputStream in = new GZIPInputStream(resource)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[64*1024];
+            int count;
+            while ((count = in.read(buf)) >= 0) {
+                out.write(buf, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public List<CsvParser.Line> csvParseReader() throws CsvParser.ParseException, IOException {
+        return CsvParser.parse(new StringReader(mCsv));
+    }
+
+    @Benchmark
+    public void csvParseBytes(Blackhole blackhole)
+            throws CsvParser.ParseException, IOException {
+        CsvParser.parse(mCsvBytes.duplicate(), blackhole::consume);
+    }
+
+    @Benchmark
+    public Map<String, MakeConfig> dumpConfigParse()
+            throws CsvParser.ParseException, IOException {
+        return DumpConfigParser.parse(new Errors(), FIXTURE, mCsvBytes.duplicate());
+    }
+
+    @Benchmark
+    public GenericConfig convert() {
+        return new ConvertMakeToGenericConfig(new Errors()).convert(mMakeConfigs);
+    }
+
+    @Benchmark
+    public GenericConfig convertParallel() {
+        return new ConvertMakeToGenericConfig(new Errors(), true).convert(mMakeConfigs);
+    }
+
+    @Benchmark
+    public FlatConfig flatten() {
+        return FlattenConfig.flatten(new Errors(), mGenericConfig);
+    }
+
+    @Benchmark
+    public FlatConfig flattenParallel() {
+        return FlattenConfig.flatten(new Errors(), mGenericConfig, true);
+    }
+
+    @Benchmark
+    public void normalize(Blackhole blackhole) {
+        for (Value value: mFlatConfig.getValues().values()) {
+            blackhole.consume(Value.normalize(value));
+        }
+    }
+
+    @Benchmark
+    public List<OutputChecker.Variable> getDifferences() {
+        return new OutputChecker(mFlatConfig).getDifferences();
+    }
+}
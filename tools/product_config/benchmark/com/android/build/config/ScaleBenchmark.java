@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole pipeline on DumpConfigGenerator output of increasing size, to see
+ * how it scales past the size of any tree we can check in.
+ * <p>
+ * Each step of 'depth' roughly multiplies the number of files by 'fanOut'. The
+ * other parameters are kept close to PipelineBenchmark's fixture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScaleBenchmark {
+    @Param({"3", "4", "5"})
+    public int depth;
+
+    @Param({"3"})
+    public int fanOut;
+
+    @Param({"0.2"})
+    public double diamondRatio;
+
+    @Param({"200"})
+    public int varCount;
+
+    @Param({"10"})
+    public int listLength;
+
+    private ByteBuffer mCsvBytes;
+
+    @Setup
+    public void setup() {
+        final String csv = new DumpConfigGenerator()
+                .setDepth(depth)
+                .setFanOut(fanOut)
+                .setDiamondRatio(diamondRatio)
+                .setVarCount(varCount)
+                .setListLength(listLength)
+                .generate();
+        mCsvBytes = ByteBuffer.wrap(csv.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @Benchmark
+    public FlatConfig pipeline() throws CsvParser.ParseException, IOException {
+        final Errors errors = new Errors();
+        final Map<String, MakeConfig> makeConfigs = DumpConfigParser.parse(errors, "synthetic",
+                mCsvBytes.duplicate());
+        final GenericConfig generic = new ConvertMakeToGenericConfig(errors).convert(makeConfigs);
+        return FlattenConfig.flatten(errors, generic);
+    }
+}
@@ -19,6 +19,7 @@ package com.android.build.config;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Converts a MakeConfig into a Generic config by applying heuristics about
@@ -27,8 +28,52 @@ import java.util.Map;
 public class ConvertMakeToGenericConfig {
     private final Errors mErrors;
 
+    /**
+     * Whether to convert the files at the same time.
+     */
+    private final boolean mParallel;
+
     public ConvertMakeToGenericConfig(Errors errors) {
+        this(errors, false);
+    }
+
+    /**
+     * If 'parallel' is true, the files are converted at the same time on the common
+     * ForkJoinPool. The result, including the order of any errors, is the same either way.
+     */
+    public ConvertMakeToGenericConfig(Errors errors, boolean parallel) {
         mErrors = errors;
+        mParallel = parallel;
+    }
+
+    /**
+     * An error found while converting a file.
+     */
+    private static class Report {
+        final ErrorReporter.Category mCategory;
+        final Position mPosition;
+        final String mMessage;
+
+        Report(ErrorReporter.Category category, Position position, String message) {
+            mCategory = category;
+            mPosition = position;
+            mMessage = message;
+        }
+    }
+
+    /**
+     * The result of converting one file. The errors are kept here rather than reported
+     * right away, so that they can be reported in file order, whichever thread found
+     * them.
+     */
+    private static class FileResult {
+        GenericConfig.ConfigFile mFile;
+        final ArrayList<Report> mReports = new ArrayList();
+        RuntimeException mException;
+
+        void add(ErrorReporter.Category category, Position pos, String message) {
+            mReports.add(new Report(category, pos, message));
+        }
     }
 
     public GenericConfig convert(Map<String, MakeConfig> make) {
@@ -43,68 +88,33 @@ public class ConvertMakeToGenericConfig {
         // Base class fields
         result.copyFrom(products);
 
-        // Each file
-        for (MakeConfig.ConfigFile f: products.getConfigFiles()) {
-            final GenericConfig.ConfigFile genericFile
-                    = new GenericConfig.ConfigFile(f.getFilename());
-            result.addConfigFile(genericFile);
-
-            final List<MakeConfig.Block> blocks = f.getBlocks();
-
-            // Some assertions:
-            // TODO: Include better context for these errors.
-            // There should always be at least a BEGIN and an AFTER, so assert this.
-            if (blocks.size() < 2) {
-                throw new RuntimeException("expected at least blocks.size() >= 2. Actcual size: "
-                        + blocks.size());
-            }
-            if (blocks.get(0).getBlockType() != MakeConfig.BlockType.BEFORE) {
-                throw new RuntimeException("expected first block to be BEFORE");
+        // Each file. These only read their own blocks and the variable types.
+        final List<MakeConfig.ConfigFile> files = products.getConfigFiles();
+        final FileResult[] results = new FileResult[files.size()];
+        if (mParallel) {
+            final ArrayList<ForkJoinTask<?>> tasks = new ArrayList();
+            for (int i = 0; i < results.length; i++) {
+                final int index = i;
+                tasks.add(ForkJoinTask.adapt(
+                        () -> results[index] = convertFile(products, files.get(index))));
             }
-            if (blocks.get(blocks.size() - 1).getBlockType() != MakeConfig.BlockType.AFTER) {
-                throw new RuntimeException("expected first block to be AFTER");
-            }
-            // Everything in between should be an INHERIT block.
-            for (int index = 1; index < blocks.size() - 1; index++) {
-                if (blocks.get(index).getBlockType() != MakeConfig.BlockType.INHERIT) {
-                    throw new RuntimeException("expected INHERIT at block " + index);
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = convertFile(products, files.get(i));
+                if (results[i].mException != null) {
+                    break;
                 }
             }
-
-            // Each block represents a snapshot of the interpreter variable state (minus a few big
-            // sets of variables which we don't export because they're used in the internals
-            // of node_fns.mk, so we know they're not necessary here). The first (BEFORE) one
-            // is everything that is set before the file is included, so it forms the base
-            // for everything else.
-            MakeConfig.Block prevBlock = blocks.get(0);
-
-            for (int index = 1; index < blocks.size(); index++) {
-                final MakeConfig.Block block = blocks.get(index);
-                for (final Map.Entry<String, Str> entry: block.getVars().entrySet()) {
-                    final String varName = entry.getKey();
-                    final GenericConfig.Assign assign = convertAssignment(block.getBlockType(),
-                            block.getInheritedFile(), products.getVarType(varName), varName,
-                            entry.getValue(), prevBlock.getVar(varName));
-                    if (assign != null) {
-                        genericFile.addStatement(assign);
-                    }
-                }
-                // Handle variables that are in prevBlock but not block -- they were
-                // deleted. Is this even possible, or do they show up as ""?  We will
-                // treat them as positive assigments to empty string
-                for (String prevName: prevBlock.getVars().keySet()) {
-                    if (!block.getVars().containsKey(prevName)) {
-                        genericFile.addStatement(
-                                new GenericConfig.Assign(prevName, new Str("")));
-                    }
-                }
-                if (block.getBlockType() == MakeConfig.BlockType.INHERIT) {
-                    genericFile.addStatement(
-                            new GenericConfig.Inherit(block.getInheritedFile()));
-                }
-                // For next iteration
-                prevBlock = block;
+        }
+        for (FileResult fileResult: results) {
+            for (Report report: fileResult.mReports) {
+                report.mCategory.add(report.mPosition, report.mMessage);
             }
+            if (fileResult.mException != null) {
+                throw fileResult.mException;
+            }
+            result.addConfigFile(fileResult.mFile);
         }
 
         // Overwrite the final variables with the ones that come from the PRODUCTS-EXPAND phase.
@@ -132,11 +142,100 @@ public class ConvertMakeToGenericConfig {
         return result;
     }
 
+    /**
+     * Convert one file. Any exception is saved in the result rather than thrown.
+     */
+    private FileResult convertFile(MakeConfig products, MakeConfig.ConfigFile f) {
+        final FileResult result = new FileResult();
+        try {
+            convertFile(products, f, result);
+        } catch (RuntimeException ex) {
+            result.mException = ex;
+        }
+        return result;
+    }
+
+    private void convertFile(MakeConfig products, MakeConfig.ConfigFile f, FileResult result) {
+        final GenericConfig.ConfigFile genericFile
+                = new GenericConfig.ConfigFile(f.getFilename());
+        result.mFile = genericFile;
+
+        final List<MakeConfig.Block> blocks = f.getBlocks();
+
+        // Some assertions:
+        // TODO: Include better context for these errors.
+        // There should always be at least a BEGIN and an AFTER, so assert this.
+        if (blocks.size() < 2) {
+            throw new RuntimeException("expected at least blocks.size() >= 2. Actcual size: "
+                    + blocks.size());
+        }
+        if (blocks.get(0).getBlockType() != MakeConfig.BlockType.BEFORE) {
+            throw new RuntimeException("expected first block to be BEFORE");
+        }
+        if (blocks.get(blocks.size() - 1).getBlockType() != MakeConfig.BlockType.AFTER) {
+            throw new RuntimeException("expected first block to be AFTER");
+        }
+        // Everything in between should be an INHERIT block.
+        for (int index = 1; index < blocks.size() - 1; index++) {
+            if (blocks.get(index).getBlockType() != MakeConfig.BlockType.INHERIT) {
+                throw new RuntimeException("expected INHERIT at block " + index);
+            }
+        }
+
+        // Each block represents a snapshot of the interpreter variable state (minus a few big
+        // sets of variables which we don't export because they're used in the internals
+        // of node_fns.mk, so we know they're not necessary here). The first (BEFORE) one
+        // is everything that is set before the file is included, so it forms the base
+        // for everything else.
+        MakeConfig.Block prevBlock = blocks.get(0);
+
+        for (int index = 1; index < blocks.size(); index++) {
+            final MakeConfig.Block block = blocks.get(index);
+            // If block is stored relative to prevBlock, then only the variables it
+            // stores can be different, so those are all that need to be looked at.
+            final boolean isDelta = block.getPrevious() == prevBlock;
+            final Map<String, Str> vars = isDelta ? block.getChangedVars() : block.getVars();
+            for (final Map.Entry<String, Str> entry: vars.entrySet()) {
+                final String varName = entry.getKey();
+                final GenericConfig.Assign assign = convertAssignment(block.getBlockType(),
+                        block.getInheritedFile(), products.getVarType(varName), varName,
+                        entry.getValue(), prevBlock.getVar(varName), result);
+                if (assign != null) {
+                    genericFile.addStatement(assign);
+                }
+            }
+            // Handle variables that are in prevBlock but not block -- they were
+            // deleted. Is this even possible, or do they show up as ""?  We will
+            // treat them as positive assigments to empty string
+            if (isDelta) {
+                for (String prevName: block.getRemovedVars()) {
+                    genericFile.addStatement(
+                            new GenericConfig.Assign(prevName, new Str("")));
+                }
+            } else {
+                final Map<String, Str> prevVars = prevBlock.getVars();
+                for (String prevName: prevVars.keySet()) {
+                    if (!vars.containsKey(prevName)) {
+                        genericFile.addStatement(
+                                new GenericConfig.Assign(prevName, new Str("")));
+                    }
+                }
+            }
+            if (block.getBlockType() == MakeConfig.BlockType.INHERIT) {
+                genericFile.addStatement(
+                        new GenericConfig.Inherit(block.getInheritedFile()));
+            }
+            // For next iteration
+            prevBlock = block;
+        }
+    }
+
     /**
      * Converts one variable from a MakeConfig Block into a GenericConfig Assignment.
      */
-    GenericConfig.Assign convertAssignment(MakeConfig.BlockType blockType, Str inheritedFile,
-            VarType varType, String varName, Str varVal, Str prevVal) {
+    private GenericConfig.Assign convertAssignment(MakeConfig.BlockType blockType,
+            Str inheritedFile, VarType varType, String varName, Str varVal, Str prevVal,
+            FileResult result) {
         if (prevVal == null) {
             // New variable.
             return new GenericConfig.Assign(varName, varVal);
@@ -159,7 +258,7 @@ public class ConvertMakeToGenericConfig {
                     }
                 } else {
                     return convertInheritedVar(blockType, inheritedFile,
-                            varName, varVal, prevVal);
+                            varName, varVal, prevVal, result);
                 }
             }
         } else {
@@ -172,8 +271,8 @@ public class ConvertMakeToGenericConfig {
      * Handle the special inherited values, where the inherit-product puts in the
      * @inherit:... markers, adding Statements to the ConfigFile.
      */
-    GenericConfig.Assign convertInheritedVar(MakeConfig.BlockType blockType, Str inheritedFile,
-            String varName, Str varVal, Str prevVal) {
+    private GenericConfig.Assign convertInheritedVar(MakeConfig.BlockType blockType,
+            Str inheritedFile, String varName, Str varVal, Str prevVal, FileResult result) {
         String varText = varVal.toString();
         String prevText = prevVal.toString().trim();
         if (blockType == MakeConfig.BlockType.INHERIT) {
@@ -182,7 +281,7 @@ public class ConvertMakeToGenericConfig {
             if (varText.endsWith(marker)) {
                 varText = varText.substring(0, varText.length() - marker.length()).trim();
             } else {
-                mErrors.ERROR_IMPROPER_PRODUCT_VAR_MARKER.add(varVal.getPosition(),
+                result.add(mErrors.ERROR_IMPROPER_PRODUCT_VAR_MARKER, varVal.getPosition(),
                         "Variable didn't end with marker \"" + marker + "\": " + varText);
             }
         }
@@ -201,7 +300,7 @@ public class ConvertMakeToGenericConfig {
                     // of the form "VAR := a $(VAR) b $(VAR) c", but if the original code
                     // something else this won't work. This doesn't happen in AOSP, but
                     // it's a theoretically possibility, so someone might do it.
-                    mErrors.WARNING_VARIABLE_RECURSION.add(varVal.getPosition(),
+                    result.add(mErrors.WARNING_VARIABLE_RECURSION, varVal.getPosition(),
                             "Possible unsupported variable recursion: "
                                 + varName + " = " + varVal + " (prev=" + prevVal + ")");
                 }
@@ -20,11 +20,10 @@ package com.android.build.config;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A CSV parser.
@@ -81,6 +80,13 @@ public class CsvParser {
         }
     }
 
+    /**
+     * Receives each Line as soon as it has been parsed.
+     */
+    public interface Visitor {
+        void onLine(Line line);
+    }
+
     // Parser States
     private static final int STATE_START_LINE = 0;
     private static final int STATE_START_FIELD = 1;
@@ -95,9 +101,72 @@ public class CsvParser {
     private static final int ACTION_LINE_COMPLETE = 4;
 
     /**
-     * Constructor.
+     * Number of characters (or bytes) requested from the input at a time.
+     */
+    private static final int READ_SIZE = 64 * 1024;
+
+    /**
+     * Character input. Null when reading UTF-8 bytes from mByteSource instead.
+     */
+    private final Reader mReader;
+
+    /**
+     * Byte input. Null when reading characters from mReader instead.
+     */
+    private final ByteBuffer mByteSource;
+
+    /**
+     * Input that has been read but not consumed yet is in mInput[mInputPos..mInputEnd),
+     * or mByteInput[mInputPos..mInputEnd) when reading bytes.
+     */
+    private char[] mInput;
+    private byte[] mByteInput;
+    private int mInputPos;
+    private int mInputEnd;
+
+    /**
+     * Offset in mByteSource of mByteInput[0].
+     */
+    private int mInputBase;
+
+    /**
+     * The field currently being built is in mField[0..mFieldLength), or
+     * mByteField[0..mFieldLength) when reading bytes.
+     */
+    private char[] mField;
+    private byte[] mByteField;
+    private int mFieldLength;
+
+    private int mLine = 1;
+    private int mColumn = 1;
+
+    /**
+     * Offset in mByteSource of the start of the current line. When reading bytes, the
+     * column is only worked out from this if there's an error, because counting characters
+     * in UTF-8 isn't free.
+     */
+    private int mLineStart;
+
+    /**
+     * Constructor for reading characters.
      */
-    private CsvParser() {
+    private CsvParser(Reader reader) {
+        mReader = reader;
+        mByteSource = null;
+        mInput = new char[READ_SIZE];
+        mField = new char[CHUNK_SIZE];
+    }
+
+    /**
+     * Constructor for reading UTF-8 bytes.
+     */
+    private CsvParser(ByteBuffer bytes) {
+        mReader = null;
+        mByteSource = bytes;
+        mInputBase = bytes.position();
+        mLineStart = bytes.position();
+        mByteInput = new byte[READ_SIZE];
+        mByteField = new byte[CHUNK_SIZE];
     }
 
     /**
@@ -110,16 +179,62 @@ public class CsvParser {
     public static List<Line> parse(Reader reader)
             throws ParseException, IOException {
         ArrayList<Line> result = new ArrayList();
-        int line = 1;
-        int column = 1;
-        int pos = 0;
-        char[] buf = new char[CHUNK_SIZE];
-        HashMap<String,String> stringPool = new HashMap();
+        parse(reader, result::add);
+        return result;
+    }
+
+    /**
+     * Reads CSV and calls visitor.onLine for each Line as it is read, without holding
+     * on to the lines that have already been reported.
+     *
+     * Same parsing rules as parse(Reader).
+     */
+    public static void parse(Reader reader, Visitor visitor)
+            throws ParseException, IOException {
+        (new CsvParser(reader)).parseImpl(visitor);
+    }
+
+    /**
+     * Reads UTF-8 encoded CSV from the remaining bytes of 'bytes' and calls visitor.onLine
+     * for each Line as it is read.
+     *
+     * The delimiters are all ASCII, so the input is scanned without decoding it, and each
+     * distinct field value is only decoded into a String the first time it is seen. This
+     * is meant for a MappedByteBuffer over the whole file.
+     *
+     * Same parsing rules as parse(Reader).
+     */
+    public static void parse(ByteBuffer bytes, Visitor visitor)
+            throws ParseException, IOException {
+        (new CsvParser(bytes)).parseImpl(visitor);
+    }
+
+    /**
+     * Run the state machine over the whole input.
+     *
+     * The input is read in chunks. The runs of plain characters inside of fields are
+     * found with tight loops and copied in bulk; only the delimiters go through the
+     * state machine one at a time.
+     */
+    private void parseImpl(Visitor visitor) throws ParseException, IOException {
+        final StringPool stringPool = new StringPool();
         ArrayList<String> fields = new ArrayList();
 
         int state = STATE_START_LINE;
         while (state != STATE_DONE) {
-            int c = reader.read();
+            if (state == STATE_INSIDE_UNQUOTED_FIELD) {
+                if (mReader != null ? scanUnquotedChars() : scanUnquotedBytes()) {
+                    // The field continues into the next chunk.
+                    continue;
+                }
+            } else if (state == STATE_INSIDE_QUOTED_FIELD) {
+                if (mReader != null ? scanQuotedChars() : scanQuotedBytes()) {
+                    // The field continues into the next chunk.
+                    continue;
+                }
+            }
+
+            int c = read();
             int action = 0;
 
             if (state == STATE_START_LINE) {
@@ -156,7 +271,7 @@ public class CsvParser {
                 }
             } else if (state == STATE_INSIDE_QUOTED_FIELD) {
                 if (c <= 0) {
-                    throw new ParseException(line, column,
+                    throw new ParseException(mLine, getColumn(c),
                             "Bad input: End of input inside quoted field.");
                 } else if (c == '"') {
                     state = STATE_FIRST_QUOTATION_MARK;
@@ -177,7 +292,7 @@ public class CsvParser {
                     action = ACTION_FIELD_COMPLETE | ACTION_LINE_COMPLETE;
                     state = STATE_START_LINE;
                 } else {
-                    throw new ParseException(line, column,
+                    throw new ParseException(mLine, getColumn(c),
                             "Bad input: Character after field ended or unquoted '\"'.");
                 }
             } else if (state == STATE_INSIDE_UNQUOTED_FIELD) {
@@ -196,47 +311,260 @@ public class CsvParser {
             }
 
             if ((action & ACTION_APPEND_CHAR) != 0) {
-                // Reallocate buffer if necessary. Hopefully not often because CHUNK_SIZE is big.
-                if (pos >= buf.length) {
-                    char[] old = buf;
-                    buf = new char[old.length + CHUNK_SIZE];
-                    System.arraycopy(old, 0, buf, 0, old.length);
+                if (mReader != null) {
+                    appendToField((char)c);
+                } else {
+                    appendToField((byte)c);
                 }
-                // Store the character
-                buf[pos] = (char)c;
-                pos++;
             }
             if ((action & ACTION_FIELD_COMPLETE) != 0) {
                 // A lot of the strings are duplicated, so pool them to reduce peak memory
-                // usage. This could be made slightly better by having a custom key class
-                // that does the lookup without making a new String that gets immediately
-                // thrown away.
-                String field = new String(buf, 0, pos);
-                final String cached = stringPool.get(field);
-                if (cached == null) {
-                    stringPool.put(field, field);
-                } else {
-                    field = cached;
-                }
+                // usage. The pool looks the characters up directly, so a new String is only
+                // made the first time each value is seen.
+                final String field = mReader != null
+                        ? stringPool.intern(mField, 0, mFieldLength)
+                        : stringPool.intern(mByteField, 0, mFieldLength);
                 fields.add(field);
-                pos = 0;
+                mFieldLength = 0;
             }
             if ((action & ACTION_LINE_COMPLETE) != 0) {
                 // Only report lines with any contents
                 if (fields.size() > 0) {
-                    result.add(new Line(line, fields));
+                    visitor.onLine(new Line(mLine, fields));
                     fields = new ArrayList();
                 }
             }
 
             if (c == '\n') {
-                line++;
-                column = 1;
+                mLine++;
+                mColumn = 1;
+                mLineStart = mInputBase + mInputPos;
             } else {
-                column++;
+                mColumn++;
             }
         }
+    }
 
-        return result;
+    /**
+     * Scan the plain characters of an unquoted field up to the next delimiter. Returns
+     * true if the end of the chunk was reached and there is more input.
+     */
+    private boolean scanUnquotedChars() throws IOException {
+        // Everything up to the next ',' or '\n' belongs to this field.
+        final char[] input = mInput;
+        final int start = mInputPos;
+        final int end = mInputEnd;
+        int i = start;
+        while (i < end) {
+            final char ch = input[i];
+            if (ch == ',' || ch == '\n' || ch == 0) {
+                break;
+            }
+            i++;
+        }
+        appendToField(input, start, i - start);
+        mColumn += i - start;
+        mInputPos = i;
+        return i == end && fill();
+    }
+
+    /**
+     * Scan the characters of a quoted field up to the next quotation mark. Returns
+     * true if the end of the chunk was reached and there is more input.
+     */
+    private boolean scanQuotedChars() throws IOException {
+        // Everything up to the next '"' belongs to this field, including newlines.
+        final char[] input = mInput;
+        final int start = mInputPos;
+        final int end = mInputEnd;
+        int i = start;
+        while (i < end) {
+            final char ch = input[i];
+            if (ch == '"' || ch == 0) {
+                break;
+            } else if (ch == '\n') {
+                mLine++;
+                mColumn = 1;
+            } else {
+                mColumn++;
+            }
+            i++;
+        }
+        appendToField(input, start, i - start);
+        mInputPos = i;
+        return i == end && fill();
+    }
+
+    /**
+     * Same as scanUnquotedChars, for UTF-8 input. Bytes of multi-byte characters are
+     * never ASCII, so they can't be mistaken for delimiters.
+     */
+    private boolean scanUnquotedBytes() throws IOException {
+        final byte[] input = mByteInput;
+        final int start = mInputPos;
+        final int end = mInputEnd;
+        int i = start;
+        while (i < end) {
+            final byte b = input[i];
+            if (b == ',' || b == '\n' || b == 0) {
+                break;
+            }
+            i++;
+        }
+        appendToField(input, start, i - start);
+        mInputPos = i;
+        return i == end && fill();
+    }
+
+    /**
+     * Same as scanQuotedChars, for UTF-8 input.
+     */
+    private boolean scanQuotedBytes() throws IOException {
+        final byte[] input = mByteInput;
+        final int start = mInputPos;
+        final int end = mInputEnd;
+        int i = start;
+        while (i < end) {
+            final byte b = input[i];
+            if (b == '"' || b == 0) {
+                break;
+            } else if (b == '\n') {
+                mLine++;
+                mLineStart = mInputBase + i + 1;
+            }
+            i++;
+        }
+        appendToField(input, start, i - start);
+        mInputPos = i;
+        return i == end && fill();
+    }
+
+    /**
+     * Refill the input buffer if it has all been consumed. Returns false at the
+     * end of the input.
+     */
+    private boolean fill() throws IOException {
+        while (mInputPos >= mInputEnd) {
+            if (mReader != null) {
+                final int amt = mReader.read(mInput, 0, mInput.length);
+                if (amt < 0) {
+                    return false;
+                }
+                mInputPos = 0;
+                mInputEnd = amt;
+            } else {
+                final int amt = Math.min(mByteSource.remaining(), mByteInput.length);
+                if (amt == 0) {
+                    return false;
+                }
+                mByteSource.get(mByteInput, 0, amt);
+                mInputBase += mInputEnd;
+                mInputPos = 0;
+                mInputEnd = amt;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the next character (or byte), or -1 at the end of the input.
+     */
+    private int read() throws IOException {
+        if (mInputPos >= mInputEnd && !fill()) {
+            return -1;
+        }
+        if (mReader != null) {
+            return mInput[mInputPos++];
+        } else {
+            return mByteInput[mInputPos++] & 0xff;
+        }
+    }
+
+    /**
+     * Return the column of 'c', the character that was just returned by read().
+     */
+    private int getColumn(int c) {
+        if (mReader != null) {
+            return mColumn;
+        }
+        // Count the characters between the start of the line and 'c'.
+        final int end = mInputBase + mInputPos - (c >= 0 ? 1 : 0);
+        final ByteBuffer line = mByteSource.duplicate();
+        line.limit(end);
+        line.position(mLineStart);
+        return StandardCharsets.UTF_8.decode(line).length() + 1;
+    }
+
+    /**
+     * Append a single character to the field in progress.
+     */
+    private void appendToField(char c) {
+        // Reallocate buffer if necessary. Hopefully not often because CHUNK_SIZE is big.
+        if (mFieldLength >= mField.length) {
+            growField(1);
+        }
+        mField[mFieldLength] = c;
+        mFieldLength++;
+    }
+
+    /**
+     * Append 'count' characters from 'src' starting at 'offset' to the field in progress.
+     */
+    private void appendToField(char[] src, int offset, int count) {
+        if (mFieldLength + count > mField.length) {
+            growField(count);
+        }
+        System.arraycopy(src, offset, mField, mFieldLength, count);
+        mFieldLength += count;
+    }
+
+    /**
+     * Append a single byte to the field in progress.
+     */
+    private void appendToField(byte b) {
+        if (mFieldLength >= mByteField.length) {
+            growByteField(1);
+        }
+        mByteField[mFieldLength] = b;
+        mFieldLength++;
+    }
+
+    /**
+     * Append 'count' bytes from 'src' starting at 'offset' to the field in progress.
+     */
+    private void appendToField(byte[] src, int offset, int count) {
+        if (mFieldLength + count > mByteField.length) {
+            growByteField(count);
+        }
+        System.arraycopy(src, offset, mByteField, mFieldLength, count);
+        mFieldLength += count;
+    }
+
+    /**
+     * Grow mField by enough CHUNK_SIZE chunks to hold 'count' more characters.
+     */
+    private void growField(int count) {
+        final int needed = mFieldLength + count;
+        int size = mField.length + CHUNK_SIZE;
+        while (size < needed) {
+            size += CHUNK_SIZE;
+        }
+        final char[] old = mField;
+        mField = new char[size];
+        System.arraycopy(old, 0, mField, 0, mFieldLength);
+    }
+
+    /**
+     * Grow mByteField by enough CHUNK_SIZE chunks to hold 'count' more bytes.
+     */
+    private void growByteField(int count) {
+        final int needed = mFieldLength + count;
+        int size = mByteField.length + CHUNK_SIZE;
+        while (size < needed) {
+            size += CHUNK_SIZE;
+        }
+        final byte[] old = mByteField;
+        mByteField = new byte[size];
+        System.arraycopy(old, 0, mByteField, 0, mFieldLength);
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Saves the parsed output of dumpconfig.mk along with content hashes of the makefiles
+ * it came from, so that kati doesn't need to run again if none of them have changed.
+ * <p>
+ * The inputs are the files named in the import and inherit rows, plus the build system
+ * makefiles that drive product config. Anything else that kati reads, like the
+ * environment, isn't tracked, which is why the cache is opt-in.
+ */
+public class DumpConfigCache {
+    /**
+     * Build system makefiles on the include stack of every product config file.
+     */
+    private static final String[] BUILD_SYSTEM_FILES = new String[] {
+        "build/make/core/dumpconfig.mk",
+        "build/make/core/node_fns.mk",
+        "build/make/core/product.mk",
+        "build/make/core/product_config.mk",
+    };
+
+    private final File mFile;
+    private final String mKey;
+
+    /**
+     * @param file The file to store the cache in.
+     * @param key Anything else that the result depends on, like the kati command line.
+     *            The cache is only used if it was saved with the same key.
+     */
+    public DumpConfigCache(File file, String key) {
+        mFile = file;
+        mKey = key;
+    }
+
+    /**
+     * Return the saved configs if none of their inputs have changed, or null if
+     * there isn't a usable cache.
+     */
+    public Map<String, MakeConfig> load() {
+        try {
+            final SnapshotReader in = openIfUpToDate();
+            if (in == null) {
+                return null;
+            }
+            final Map<String, MakeConfig> result = in.readMakeConfigs();
+            if (!in.isAtEnd()) {
+                return null;
+            }
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            // Corrupt or from another version. Run kati again and overwrite it. The
+            // reader checks the structure of the file, but a damaged one can still be
+            // well formed, with a null or mangled string where a name belongs, and
+            // that fails further in.
+            return null;
+        }
+    }
+
+    /**
+     * Return whether load() would return the saved configs, without reading them.
+     */
+    public boolean isUpToDate() {
+        try {
+            return openIfUpToDate() != null;
+        } catch (IOException | RuntimeException ex) {
+            // The same as load().
+            return false;
+        }
+    }
+
+    /**
+     * Return a reader positioned at the saved configs if none of their inputs have
+     * changed, otherwise null.
+     */
+    private SnapshotReader openIfUpToDate() throws IOException {
+        if (!mFile.isFile()) {
+            return null;
+        }
+        final SnapshotReader in = SnapshotReader.open(mFile);
+        if (!mKey.equals(in.readString())) {
+            return null;
+        }
+        final int count = in.readVarint();
+        for (int i = 0; i < count; i++) {
+            final String filename = in.readString();
+            final byte[] hash = in.readBytes();
+            if (!Arrays.equals(hash, hashFile(filename))) {
+                return null;
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Save 'configs', along with hashes of the files that they were read from.
+     * Returns whether it succeeded.
+     */
+    public boolean save(Map<String, MakeConfig> configs) {
+        final SnapshotWriter out = new SnapshotWriter();
+        out.writeString(mKey);
+        final TreeSet<String> inputs = getInputFiles(configs);
+        out.writeVarint(inputs.size());
+        for (String filename: inputs) {
+            out.writeString(filename);
+            out.writeBytes(hashFile(filename));
+        }
+        out.writeMakeConfigs(configs);
+        try {
+            out.writeTo(mFile);
+            return true;
+        } catch (IOException ex) {
+            mFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Return the makefiles that 'configs' depend on.
+     */
+    // VisibleForTesting
+    static TreeSet<String> getInputFiles(Map<String, MakeConfig> configs) {
+        final TreeSet<String> result = new TreeSet(Arrays.asList(BUILD_SYSTEM_FILES));
+        for (MakeConfig config: configs.values()) {
+            final List<String> rootNodes = config.getRootNodes();
+            if (rootNodes != null) {
+                result.addAll(rootNodes);
+            }
+            for (MakeConfig.ConfigFile file: config.getConfigFiles()) {
+                result.add(file.getFilename());
+                for (MakeConfig.Block block: file.getBlocks()) {
+                    final Str inherited = block.getInheritedFile();
+                    if (inherited != null) {
+                        result.add(inherited.toString());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the SHA-256 of the file's contents, or an empty array if it can't be read,
+     * so that a file appearing or disappearing also counts as a change.
+     */
+    private static byte[] hashFile(String filename) {
+        try {
+            final byte[] contents = Files.readAllBytes(Paths.get(filename));
+            return MessageDigest.getInstance("SHA-256").digest(contents);
+        } catch (IOException ex) {
+            return new byte[0];
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new RuntimeException(ex);
+        }
+    }
+}
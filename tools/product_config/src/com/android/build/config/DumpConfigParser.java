@@ -19,14 +19,13 @@ package com.android.build.config;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 /**
  * Parses the output of ckati building build/make/core/dumpconfig.mk.
@@ -49,18 +48,41 @@ public class DumpConfigParser {
     private final Errors mErrors;
     private final String mFilename;
     private final Reader mReader;
+    private final ByteBuffer mBytes;
 
     private final Map<String,MakeConfig> mResults = new HashMap();
 
-    private static final Pattern LIST_SEPARATOR = Pattern.compile("\\s+");
+    /**
+     * Most values come from a handful of assignments, so share their Positions.
+     */
+    private final PositionPool mPositions = new PositionPool();
+
+    /**
+     * Whether the dumpconfig_version line has been seen yet.
+     */
+    private boolean mStarted;
+
+    // Any lines before the start signal will be dropped. We create garbage objects
+    // here to avoid having to check for null everywhere.
+    private MakeConfig mMakeConfig = new MakeConfig();
+    private MakeConfig.ConfigFile mConfigFile = new MakeConfig.ConfigFile("<ignored>");
+    private MakeConfig.Block mBlock = new MakeConfig.Block(MakeConfig.BlockType.UNSET);
+    /**
+     * The variables for mBlock, which are given to it all at once by finishBlock(), so
+     * that it can store only what changed since the block before it.
+     */
+    private final HashMap<String, Str> mBlockVars = new HashMap();
+    private Map<String, Str> mInitialVariables = new HashMap();
+    private Map<String, Str> mFinalVariables = new HashMap();
 
     /**
      * Constructor.
      */
-    private DumpConfigParser(Errors errors, String filename, Reader reader) {
+    private DumpConfigParser(Errors errors, String filename, Reader reader, ByteBuffer bytes) {
         mErrors = errors;
         mFilename = filename;
         mReader = reader;
+        mBytes = bytes;
     }
 
     /**
@@ -68,31 +90,58 @@ public class DumpConfigParser {
      */
     public static Map<String,MakeConfig> parse(Errors errors, String filename, Reader reader)
             throws CsvParser.ParseException, IOException {
-        DumpConfigParser parser = new DumpConfigParser(errors, filename, reader);
+        DumpConfigParser parser = new DumpConfigParser(errors, filename, reader, null);
+        parser.parseImpl();
+        return parser.mResults;
+    }
+
+    /**
+     * Parse UTF-8 encoded text, such as a memory mapped file, into a map of the phase
+     * names to MakeConfig objects.
+     */
+    public static Map<String,MakeConfig> parse(Errors errors, String filename, ByteBuffer bytes)
+            throws CsvParser.ParseException, IOException {
+        DumpConfigParser parser = new DumpConfigParser(errors, filename, null, bytes);
         parser.parseImpl();
         return parser.mResults;
     }
 
     /**
      * Parse the input.
+     *
+     * Each line is handled as soon as CsvParser has read it, so only the line in
+     * progress is held in memory, not the whole file.
      */
     private void parseImpl() throws CsvParser.ParseException, IOException {
-        final List<CsvParser.Line> lines = CsvParser.parse(mReader);
-        final int lineCount = lines.size();
-        int index = 0;
+        if (mBytes != null) {
+            CsvParser.parse(mBytes, this::onLine);
+        } else {
+            CsvParser.parse(mReader, this::onLine);
+        }
+        finishBlock();
+
+        // If we never saw dumpconfig_version, there's a problem with the command, so stop.
+        if (!mStarted) {
+            mErrors.ERROR_DUMPCONFIG.fatal(
+                    new Position(mFilename),
+                    "Never saw a valid dumpconfig_version line.");
+        }
+    }
 
-        int dumpconfigVersion = 0;
+    /**
+     * Handle one line of input.
+     */
+    private void onLine(CsvParser.Line line) {
+        final List<String> fields = line.getFields();
 
         // Ignore lines until until we get a dumpconfig_version line for forward compatibility.
-        // In a previous life, this loop parsed from all of kati's stdout, not just the file
-        // that dumpconfig.mk writes, but it's harmless to leave this loop in.  It gives us a
+        // In a previous life, this parsed from all of kati's stdout, not just the file
+        // that dumpconfig.mk writes, but it's harmless to leave this check in.  It gives us a
         // little bit of flexibility which we probably won't need anyway, this tool probably
         // won't diverge from dumpconfig.mk anyway.
-        for (; index < lineCount; index++) {
-            final CsvParser.Line line = lines.get(index);
-            final List<String> fields = line.getFields();
-
+        if (!mStarted) {
             if (matchLineType(line, "dumpconfig_version", 1)) {
+                int dumpconfigVersion = 0;
                 try {
                     dumpconfigVersion = Integer.parseInt(fields.get(1));
                 } catch (NumberFormatException ex) {
@@ -100,181 +149,177 @@ public class DumpConfigParser {
                             new Position(mFilename, line.getLine()),
                             "Couldn't parse dumpconfig_version: " + fields.get(1));
                 }
-                break;
+                if (dumpconfigVersion == 0) {
+                    mErrors.ERROR_DUMPCONFIG.fatal(
+                            new Position(mFilename),
+                            "Never saw a valid dumpconfig_version line.");
+                }
+                mStarted = true;
             }
+            return;
         }
 
-        // If we never saw dumpconfig_version, there's a problem with the command, so stop.
-        if (dumpconfigVersion == 0) {
-            mErrors.ERROR_DUMPCONFIG.fatal(
-                    new Position(mFilename),
-                    "Never saw a valid dumpconfig_version line.");
-        }
+        if (matchLineType(line, "phase", 2)) {
+            // Start the new one
+            mMakeConfig = new MakeConfig();
+            mMakeConfig.setPhase(fields.get(1));
+            mMakeConfig.setRootNodes(splitList(fields.get(2)));
+            // If there is a duplicate phase of the same name, continue parsing, but
+            // don't add it.  Emit a warning.
+            if (!mResults.containsKey(mMakeConfig.getPhase())) {
+                mResults.put(mMakeConfig.getPhase(), mMakeConfig);
+            } else {
+                mErrors.WARNING_DUMPCONFIG.add(
+                        new Position(mFilename, line.getLine()),
+                        "Duplicate phase: " + mMakeConfig.getPhase()
+                            + ". This one will be dropped.");
+            }
+            mInitialVariables = mMakeConfig.getInitialVariables();
+            mFinalVariables = mMakeConfig.getFinalVariables();
 
-        // Any lines before the start signal will be dropped. We create garbage objects
-        // here to avoid having to check for null everywhere.
-        MakeConfig makeConfig = new MakeConfig();
-        MakeConfig.ConfigFile configFile = new MakeConfig.ConfigFile("<ignored>");
-        MakeConfig.Block block = new MakeConfig.Block(MakeConfig.BlockType.UNSET);
-        Map<String, Str> initialVariables = new HashMap();
-        Map<String, Str> finalVariables = new HashMap();
-
-        // Number of "phases" we've seen so far.
-        for (; index < lineCount; index++) {
-            final CsvParser.Line line = lines.get(index);
-            final List<String> fields = line.getFields();
-            final String lineType = fields.get(0);
-
-            if (matchLineType(line, "phase", 2)) {
-                // Start the new one
-                makeConfig = new MakeConfig();
-                makeConfig.setPhase(fields.get(1));
-                makeConfig.setRootNodes(splitList(fields.get(2)));
-                // If there is a duplicate phase of the same name, continue parsing, but
-                // don't add it.  Emit a warning.
-                if (!mResults.containsKey(makeConfig.getPhase())) {
-                    mResults.put(makeConfig.getPhase(), makeConfig);
-                } else {
-                    mErrors.WARNING_DUMPCONFIG.add(
-                            new Position(mFilename, line.getLine()),
-                            "Duplicate phase: " + makeConfig.getPhase()
-                                + ". This one will be dropped.");
-                }
-                initialVariables = makeConfig.getInitialVariables();
-                finalVariables = makeConfig.getFinalVariables();
+            if (DEBUG) {
+                System.out.println("PHASE:");
+                System.out.println("  " + mMakeConfig.getPhase());
+                System.out.println("  " + mMakeConfig.getRootNodes());
+            }
+        } else if (matchLineType(line, "var", 2)) {
+            final VarType type = "list".equals(fields.get(1)) ? VarType.LIST : VarType.SINGLE;
+            mMakeConfig.addProductVar(fields.get(2), type);
 
-                if (DEBUG) {
-                    System.out.println("PHASE:");
-                    System.out.println("  " + makeConfig.getPhase());
-                    System.out.println("  " + makeConfig.getRootNodes());
-                }
-            } else if (matchLineType(line, "var", 2)) {
-                final VarType type = "list".equals(fields.get(1)) ? VarType.LIST : VarType.SINGLE;
-                makeConfig.addProductVar(fields.get(2), type);
+            if (DEBUG) {
+                System.out.println("  VAR: " + type + " " + fields.get(2));
+            }
+        } else if (matchLineType(line, "import", 1)) {
+            final List<String> importStack = splitList(fields.get(1));
+            if (importStack.size() == 0) {
+                mErrors.WARNING_DUMPCONFIG.add(
+                        new Position(mFilename, line.getLine()),
+                        "'import' line with empty include stack.");
+                return;
+            }
 
-                if (DEBUG) {
-                    System.out.println("  VAR: " + type + " " + fields.get(2));
-                }
-            } else if (matchLineType(line, "import", 1)) {
-                final List<String> importStack = splitList(fields.get(1));
-                if (importStack.size() == 0) {
-                    mErrors.WARNING_DUMPCONFIG.add(
-                            new Position(mFilename, line.getLine()),
-                            "'import' line with empty include stack.");
-                    continue;
-                }
+            // The beginning of importing a new file.
+            finishBlock();
+            mConfigFile = new MakeConfig.ConfigFile(importStack.get(0));
+            if (mMakeConfig.addConfigFile(mConfigFile) != null) {
+                mErrors.WARNING_DUMPCONFIG.add(
+                        new Position(mFilename, line.getLine()),
+                        "Duplicate file imported in section: " + mConfigFile.getFilename());
+            }
+            // We expect a Variable block next.
+            mBlock = new MakeConfig.Block(MakeConfig.BlockType.BEFORE);
+            mConfigFile.addBlock(mBlock);
 
-                // The beginning of importing a new file.
-                configFile = new MakeConfig.ConfigFile(importStack.get(0));
-                if (makeConfig.addConfigFile(configFile) != null) {
-                    mErrors.WARNING_DUMPCONFIG.add(
-                            new Position(mFilename, line.getLine()),
-                            "Duplicate file imported in section: " + configFile.getFilename());
-                }
-                // We expect a Variable block next.
-                block = new MakeConfig.Block(MakeConfig.BlockType.BEFORE);
-                configFile.addBlock(block);
+            if (DEBUG) {
+                System.out.println("  IMPORT: " + mConfigFile.getFilename());
+            }
+        } else if (matchLineType(line, "inherit", 2)) {
+            final String currentFile = fields.get(1);
+            final String inheritedFile = fields.get(2);
+            if (!mConfigFile.getFilename().equals(currentFile)) {
+                mErrors.WARNING_DUMPCONFIG.add(
+                        new Position(mFilename, line.getLine()),
+                        "Unexpected current file in 'inherit' line '" + currentFile
+                            + "' while processing '" + mConfigFile.getFilename() + "'");
+                return;
+            }
 
-                if (DEBUG) {
-                    System.out.println("  IMPORT: " + configFile.getFilename());
-                }
-            } else if (matchLineType(line, "inherit", 2)) {
-                final String currentFile = fields.get(1);
-                final String inheritedFile = fields.get(2);
-                if (!configFile.getFilename().equals(currentFile)) {
-                    mErrors.WARNING_DUMPCONFIG.add(
-                            new Position(mFilename, line.getLine()),
-                            "Unexpected current file in 'inherit' line '" + currentFile
-                                + "' while processing '" + configFile.getFilename() + "'");
-                    continue;
-                }
+            // There is already a file in progress, so add another var block to that.
+            finishBlock();
+            mBlock = new MakeConfig.Block(MakeConfig.BlockType.INHERIT, mBlock);
+            // TODO: Make dumpconfig.mk also output a Position for inherit-product
+            mBlock.setInheritedFile(new Str(inheritedFile));
+            mConfigFile.addBlock(mBlock);
+
+            if (DEBUG) {
+                System.out.println("  INHERIT: " + inheritedFile);
+            }
+        } else if (matchLineType(line, "imported", 1)) {
+            final List<String> importStack = splitList(fields.get(1));
+            if (importStack.size() == 0) {
+                mErrors.WARNING_DUMPCONFIG.add(
+                        new Position(mFilename, line.getLine()),
+                        "'imported' line with empty include stack.");
+                return;
+            }
+            final String currentFile = importStack.get(0);
+            if (!mConfigFile.getFilename().equals(currentFile)) {
+                mErrors.WARNING_DUMPCONFIG.add(
+                        new Position(mFilename, line.getLine()),
+                        "Unexpected current file in 'imported' line '" + currentFile
+                            + "' while processing '" + mConfigFile.getFilename() + "'");
+                return;
+            }
 
-                // There is already a file in progress, so add another var block to that.
-                block = new MakeConfig.Block(MakeConfig.BlockType.INHERIT);
-                // TODO: Make dumpconfig.mk also output a Position for inherit-product
-                block.setInheritedFile(new Str(inheritedFile));
-                configFile.addBlock(block);
+            // There is already a file in progress, so add another var block to that.
+            // This will be the last one, but will check that after parsing.
+            finishBlock();
+            mBlock = new MakeConfig.Block(MakeConfig.BlockType.AFTER, mBlock);
+            mConfigFile.addBlock(mBlock);
 
-                if (DEBUG) {
-                    System.out.println("  INHERIT: " + inheritedFile);
-                }
-            } else if (matchLineType(line, "imported", 1)) {
-                final List<String> importStack = splitList(fields.get(1));
-                if (importStack.size() == 0) {
+            if (DEBUG) {
+                System.out.println("  AFTER: " + currentFile);
+            }
+        } else if (matchLineType(line, "val", 5)) {
+            final String productMakefile = fields.get(1);
+            final String blockTypeString = fields.get(2);
+            final String varName = fields.get(3);
+            final String varValue = fields.get(4);
+            final Position pos = mPositions.parse(fields.get(5));
+            final Str str = new Str(pos, varValue);
+
+            if (blockTypeString.equals("initial")) {
+                mInitialVariables.put(varName, str);
+            } else if (blockTypeString.equals("final")) {
+                mFinalVariables.put(varName, str);
+            } else {
+                if (!productMakefile.equals(mConfigFile.getFilename())) {
                     mErrors.WARNING_DUMPCONFIG.add(
                             new Position(mFilename, line.getLine()),
-                            "'imported' line with empty include stack.");
-                    continue;
+                            "Mismatched 'val' product makefile."
+                                + " Expected: " + mConfigFile.getFilename()
+                                + " Saw: " + productMakefile);
+                    return;
+                }
+
+                final MakeConfig.BlockType blockType = parseBlockType(line, blockTypeString);
+                if (blockType == null) {
+                    return;
                 }
-                final String currentFile = importStack.get(0);
-                if (!configFile.getFilename().equals(currentFile)) {
+                if (blockType != mBlock.getBlockType()) {
                     mErrors.WARNING_DUMPCONFIG.add(
                             new Position(mFilename, line.getLine()),
-                            "Unexpected current file in 'imported' line '" + currentFile
-                                + "' while processing '" + configFile.getFilename() + "'");
-                    continue;
+                            "Mismatched 'val' block type."
+                                + " Expected: " + mBlock.getBlockType()
+                                + " Saw: " + blockType);
                 }
 
-                // There is already a file in progress, so add another var block to that.
-                // This will be the last one, but will check that after parsing.
-                block = new MakeConfig.Block(MakeConfig.BlockType.AFTER);
-                configFile.addBlock(block);
-
-                if (DEBUG) {
-                    System.out.println("  AFTER: " + currentFile);
-                }
-            } else if (matchLineType(line, "val", 5)) {
-                final String productMakefile = fields.get(1);
-                final String blockTypeString = fields.get(2);
-                final String varName = fields.get(3);
-                final String varValue = fields.get(4);
-                final Position pos = Position.parse(fields.get(5));
-                final Str str = new Str(pos, varValue);
-
-                if (blockTypeString.equals("initial")) {
-                    initialVariables.put(varName, str);
-                } else if (blockTypeString.equals("final")) {
-                    finalVariables.put(varName, str);
-                } else {
-                    if (!productMakefile.equals(configFile.getFilename())) {
-                        mErrors.WARNING_DUMPCONFIG.add(
-                                new Position(mFilename, line.getLine()),
-                                "Mismatched 'val' product makefile."
-                                    + " Expected: " + configFile.getFilename()
-                                    + " Saw: " + productMakefile);
-                        continue;
-                    }
-
-                    final MakeConfig.BlockType blockType = parseBlockType(line, blockTypeString);
-                    if (blockType == null) {
-                        continue;
-                    }
-                    if (blockType != block.getBlockType()) {
-                        mErrors.WARNING_DUMPCONFIG.add(
-                                new Position(mFilename, line.getLine()),
-                                "Mismatched 'val' block type."
-                                    + " Expected: " + block.getBlockType()
-                                    + " Saw: " + blockType);
-                    }
-
-                    // Add the variable to the block in progress
-                    block.addVar(varName, str);
-                }
-            } else {
-                if (DEBUG) {
-                    System.out.print("# ");
-                    for (int d = 0; d < fields.size(); d++) {
-                        System.out.print(fields.get(d));
-                        if (d != fields.size() - 1) {
-                            System.out.print(",");
-                        }
+                // Add the variable to the block in progress
+                mBlockVars.put(varName, str);
+            }
+        } else {
+            if (DEBUG) {
+                System.out.print("# ");
+                for (int d = 0; d < fields.size(); d++) {
+                    System.out.print(fields.get(d));
+                    if (d != fields.size() - 1) {
+                        System.out.print(",");
                     }
-                    System.out.println();
                 }
+                System.out.println();
             }
         }
     }
 
+    /**
+     * Give mBlock the variables that have been read for it. Call this only when
+     * replacing mBlock with a new one, or at the end.
+     */
+    private void finishBlock() {
+        mBlock.setVars(mBlockVars);
+        mBlockVars.clear();
+    }
+
     /**
      * Return true if the line type matches 'lineType' and there are at least 'fieldCount'
      * fields (not including the first field which is the line type).
@@ -297,9 +342,16 @@ public class DumpConfigParser {
      * Split a string with space separated items (i.e. the make list format) into a List<String>.
      */
     private static List<String> splitList(String text) {
-        // Arrays.asList returns a fixed-length List, so we copy it into an ArrayList to not
-        // propagate that surprise detail downstream.
-        return new ArrayList(Arrays.asList(LIST_SEPARATOR.split(text.trim())));
+        final ArrayList<String> result = new ArrayList();
+        final WhitespaceTokenizer words = new WhitespaceTokenizer(text);
+        while (words.next()) {
+            result.add(words.getWord());
+        }
+        // Like String.split, an empty string is one empty item.
+        if (result.size() == 0) {
+            result.add("");
+        }
+        return result;
     }
 
     /**
@@ -23,31 +23,70 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Base class for reporting errors.
+ * <p>
+ * Errors can be added from any number of threads at once. Each one is numbered as it
+ * is added and put in a lock-free queue, and getEntries sorts them by that number, so
+ * they come back in the order they were added. For one thread that is the order of
+ * the calls, but errors from different threads interleave however the threads ran.
+ * Work that runs on several threads and needs the same output every time should
+ * collect its errors and add them from one thread, the way ConvertMakeToGenericConfig
+ * does.
+ * <p>
+ * So that a badly broken tree doesn't fill up memory, only the first
+ * getMaxEntriesPerCategory() entries of each category are kept, and an entry at the
+ * same file and line as one already kept in its category is dropped. printErrors says
+ * how many were left out. Messages that are expensive to build can be passed as a
+ * Supplier, which is only called if the entry is kept and printed.
  */
 public class ErrorReporter {
     /**
-     * List of Entries that have occurred.
+     * The default for getMaxEntriesPerCategory().
      */
-    // Also used as the lock for this object.
-    private final ArrayList<Entry> mEntries = new ArrayList();
+    public static final int DEFAULT_MAX_ENTRIES_PER_CATEGORY = 1000;
 
     /**
-     * The categories that are for this Errors object.
+     * The number for the next entry that's added.
      */
-    private Map<Integer, Category> mCategories;
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /**
+     * The entries that have been kept. Two threads adding at once can put them here in a
+     * different order from their sequence numbers, so getEntries sorts them.
+     */
+    private final ConcurrentLinkedQueue<Entry> mEntries = new ConcurrentLinkedQueue();
+
+    /**
+     * Lock for creating mCategories.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * The categories that are for this Errors object. Created the first time it's needed,
+     * because the subclass's fields aren't set yet when the constructor runs.
+     */
+    private volatile Map<Integer, Category> mCategories;
 
     /**
      * Whether there has been a warning or an error yet.
      */
-    private boolean mHadWarningOrError;
+    private volatile boolean mHadWarningOrError;
 
     /**
      * Whether there has been an error yet.
      */
-    private boolean mHadError;
+    private volatile boolean mHadError;
+
+    private volatile int mMaxEntriesPerCategory = DEFAULT_MAX_ENTRIES_PER_CATEGORY;
 
     public static class FatalException extends RuntimeException {
         FatalException(String message) {
@@ -84,9 +123,25 @@ public class ErrorReporter {
     public class Category {
         private final int mCode;
         private boolean mIsLevelSettable;
-        private Level mLevel;
+        private volatile Level mLevel;
         private String mHelp;
 
+        /**
+         * The number of entries kept for this category.
+         */
+        private final AtomicInteger mKeptCount = new AtomicInteger();
+
+        /**
+         * The number of entries that were dropped, for being at the same position as one
+         * that was kept or for being over the limit.
+         */
+        private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+        /**
+         * The positions of the kept entries that have a file and line.
+         */
+        private final Set<Position> mPositions = ConcurrentHashMap.newKeySet();
+
         /**
          * Construct a Category object.
          */
@@ -142,7 +197,7 @@ public class ErrorReporter {
          * Add an error with no source position.
          */
         public void add(String message) {
-            ErrorReporter.this.add(this, false, new Position(), message);
+            ErrorReporter.this.add(this, false, Position.NO_POSITION, message);
         }
 
         /**
@@ -152,12 +207,60 @@ public class ErrorReporter {
             ErrorReporter.this.add(this, false, pos, message);
         }
 
+        /**
+         * Add an error with no source position. 'message' is only called if the error is
+         * kept, and then only once.
+         */
+        public void add(Supplier<String> message) {
+            ErrorReporter.this.add(this, false, Position.NO_POSITION, message);
+        }
+
+        /**
+         * Add an error. 'message' is only called if the error is kept, and then only once.
+         */
+        public void add(Position pos, Supplier<String> message) {
+            ErrorReporter.this.add(this, false, pos, message);
+        }
+
+        /**
+         * Returns the number of entries that were added but not kept.
+         */
+        public int getDroppedCount() {
+            return mDroppedCount.get();
+        }
+
+        /**
+         * Decide whether to keep an entry at 'pos'. Fatal entries are always kept.
+         */
+        private boolean keep(Position pos, boolean fatal) {
+            final boolean hasLine = pos != null && pos.getFile() != null
+                    && pos.getLine() != Position.NO_LINE;
+            if (!fatal) {
+                if (hasLine && mPositions.contains(pos)) {
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                }
+                if (mKeptCount.incrementAndGet() > mMaxEntriesPerCategory) {
+                    mKeptCount.decrementAndGet();
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                }
+            }
+            if (hasLine && !mPositions.add(pos) && !fatal) {
+                // Another thread got there first with the same position.
+                mKeptCount.decrementAndGet();
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
         /**
          * Add an error with no source position, and throw a FatalException, stopping processing
          * immediately.
          */
         public void fatal(String message) {
-            ErrorReporter.this.add(this, true, new Position(), message);
+            ErrorReporter.this.add(this, true, Position.NO_POSITION, message);
         }
 
         /**
@@ -174,12 +277,15 @@ public class ErrorReporter {
     public static class Entry {
         private final Category mCategory;
         private final Position mPosition;
-        private final String mMessage;
+        private final long mSequence;
+        private Supplier<String> mMessageSupplier;
+        private String mMessage;
 
-        Entry(Category category, Position position, String message) {
+        Entry(Category category, Position position, Supplier<String> message, long sequence) {
             mCategory = category;
             mPosition = position;
-            mMessage = message;
+            mMessageSupplier = message;
+            mSequence = sequence;
         }
 
         public Category getCategory() {
@@ -190,7 +296,11 @@ public class ErrorReporter {
             return mPosition;
         }
 
-        public String getMessage() {
+        public synchronized String getMessage() {
+            if (mMessageSupplier != null) {
+                mMessage = mMessageSupplier.get();
+                mMessageSupplier = null;
+            }
             return mMessage;
         }
 
@@ -198,31 +308,42 @@ public class ErrorReporter {
         public String toString() {
             return mPosition
                     + "[" + mCategory.getLevel().getLabel() + " " + mCategory.getCode() + "] "
-                    + mMessage;
+                    + getMessage();
         }
     }
 
-    private void initLocked() {
-        if (mCategories == null) {
-            HashMap<Integer, Category> categories = new HashMap();
-            for (Field field: getClass().getFields()) {
-                if (Category.class.isAssignableFrom(field.getType())) {
-                    Category category = null;
-                    try {
-                        category = (Category)field.get(this);
-                    } catch (IllegalAccessException ex) {
-                        // Wrap and rethrow, this is always on this class, so it's
-                        // our programming error if this happens.
-                        throw new RuntimeException("Categories on Errors should be public.", ex);
-                    }
-                    Category prev = categories.put(category.getCode(), category);
-                    if (prev != null) {
-                        throw new RuntimeException("Duplicate categories with code "
-                                + category.getCode());
+    /**
+     * Returns the categories, finding them the first time.
+     */
+    private Map<Integer, Category> initCategories() {
+        Map<Integer, Category> result = mCategories;
+        if (result != null) {
+            return result;
+        }
+        synchronized (mLock) {
+            if (mCategories == null) {
+                HashMap<Integer, Category> categories = new HashMap();
+                for (Field field: getClass().getFields()) {
+                    if (Category.class.isAssignableFrom(field.getType())) {
+                        Category category = null;
+                        try {
+                            category = (Category)field.get(this);
+                        } catch (IllegalAccessException ex) {
+                            // Wrap and rethrow, this is always on this class, so it's
+                            // our programming error if this happens.
+                            throw new RuntimeException("Categories on Errors should be public.",
+                                    ex);
+                        }
+                        Category prev = categories.put(category.getCode(), category);
+                        if (prev != null) {
+                            throw new RuntimeException("Duplicate categories with code "
+                                    + category.getCode());
+                        }
                     }
                 }
+                mCategories = Collections.unmodifiableMap(categories);
             }
-            mCategories = Collections.unmodifiableMap(categories);
+            return mCategories;
         }
     }
 
@@ -230,74 +351,109 @@ public class ErrorReporter {
      * Returns a map of the category codes to the categories.
      */
     public Map<Integer, Category> getCategories() {
-        synchronized (mEntries) {
-            initLocked();
-            return mCategories;
-        }
+        return initCategories();
     }
 
     /**
      * Add an error.
      */
     private void add(Category category, boolean fatal, Position pos, String message) {
-        synchronized (mEntries) {
-            initLocked();
-            if (mCategories.get(category.getCode()) != category) {
-                throw new RuntimeException("Errors.Category used from the wrong Errors object.");
-            }
-            final Entry entry = new Entry(category, pos, message);
-            mEntries.add(entry);
-            final Level level = category.getLevel();
-            if (level == Level.WARNING || level == Level.ERROR) {
-                mHadWarningOrError = true;
-            }
-            if (level == Level.ERROR) {
-                mHadError = true;
-            }
-            if (fatal) {
-                throw new FatalException(entry.toString());
-            }
+        add(category, fatal, pos, () -> message);
+    }
+
+    /**
+     * Add an error whose message is made when it's needed.
+     */
+    private void add(Category category, boolean fatal, Position pos,
+            Supplier<String> message) {
+        if (initCategories().get(category.getCode()) != category) {
+            throw new RuntimeException("Errors.Category used from the wrong Errors object.");
+        }
+        final long sequence = mNextSequence.getAndIncrement();
+        final Level level = category.getLevel();
+        if (level == Level.WARNING || level == Level.ERROR) {
+            mHadWarningOrError = true;
+        }
+        if (level == Level.ERROR) {
+            mHadError = true;
+        }
+        if (!category.keep(pos, fatal)) {
+            return;
         }
+        final Entry entry = new Entry(category, pos, message, sequence);
+        mEntries.add(entry);
+        if (fatal) {
+            throw new FatalException(entry.toString());
+        }
+    }
+
+    /**
+     * Returns how many entries are kept for each category. Entries after that are
+     * dropped.
+     */
+    public int getMaxEntriesPerCategory() {
+        return mMaxEntriesPerCategory;
+    }
+
+    /**
+     * Set how many entries are kept for each category. Only affects errors added after
+     * this is called.
+     */
+    public void setMaxEntriesPerCategory(int max) {
+        mMaxEntriesPerCategory = max;
     }
 
     /**
      * Returns whether there has been a warning or an error yet.
      */
     public boolean hadWarningOrError() {
-        synchronized (mEntries) {
-            return mHadWarningOrError;
-        }
+        return mHadWarningOrError;
     }
 
     /**
      * Returns whether there has been an error yet.
      */
     public boolean hadError() {
-        synchronized (mEntries) {
-            return mHadError;
-        }
+        return mHadError;
+    }
+
+    /**
+     * Returns the number of entries that have been added, without copying them. This
+     * includes entries that were dropped.
+     */
+    public int getEntryCount() {
+        return (int)mNextSequence.get();
     }
 
     /**
-     * Returns a list of all entries that were added.
+     * Returns a list of all entries that were kept.
      */
     public List<Entry> getEntries() {
-        synchronized (mEntries) {
-            return new ArrayList<Entry>(mEntries);
-        }
+        final ArrayList<Entry> result = new ArrayList(mEntries);
+        // Almost always already in order, which the sort handles in one pass.
+        result.sort((a, b) -> Long.compare(a.mSequence, b.mSequence));
+        return result;
     }
 
     /**
      * Prints the errors.
      */
     public void printErrors(PrintStream out) {
-        synchronized (mEntries) {
-            for (Entry entry: mEntries) {
-                if (entry.getCategory().getLevel() == Level.HIDDEN) {
-                    continue;
-                }
-                out.println(entry.toString());
+        for (Entry entry: getEntries()) {
+            if (entry.getCategory().getLevel() == Level.HIDDEN) {
+                continue;
+            }
+            out.println(entry.toString());
+        }
+        final TreeMap<Integer, Category> sorted = new TreeMap(getCategories());
+        for (Category category: sorted.values()) {
+            final int dropped = category.getDroppedCount();
+            if (dropped == 0 || category.getLevel() == Level.HIDDEN) {
+                continue;
             }
+            out.println("[" + category.getLevel().getLabel() + " " + category.getCode() + "] "
+                    + dropped + " more not shown, repeated or over the limit of "
+                    + mMaxEntriesPerCategory + ".");
         }
     }
 }
@@ -66,6 +66,12 @@ public class Errors extends ErrorReporter {
     public final Category ERROR_INFINITE_RECURSION = new Category(9, true, Level.ERROR,
             "A file tries to inherit-product from itself or its own inherited products.");
 
+    public final Category ERROR_SERVER = new Category(10, false, Level.ERROR,
+            "Error running or connecting to the product config server.");
+
+    public final Category ERROR_PROFILE = new Category(11, false, Level.ERROR,
+            "Error writing the --profile output.");
+
     // TODO: This will become obsolete when it is possible to have starlark-based product
     // config files.
     public final Category WARNING_DIFFERENT_FROM_KATI = new Category(1000, true, Level.WARNING,
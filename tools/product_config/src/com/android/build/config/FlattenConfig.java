@@ -21,32 +21,55 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinTask;
 
 public class FlattenConfig {
-    private static final Pattern RE_SPACE = Pattern.compile("\\p{Space}+");
     private static final String PRODUCTS_PREFIX = "PRODUCTS";
 
     private final Errors mErrors;
     private final GenericConfig mGenericConfig;
-    private final Map<String, GenericConfig.ConfigFile> mGenericConfigs;
+    private final HashMap<String, FileIndex> mIndex = new HashMap();
     private final FlatConfig mResult = new FlatConfig();
     private final Map<String, Value> mVariables;
     /**
      * Files that have been visited, to prevent infinite recursion. There are no
      * conditionals at this point in the processing, so we don't need a stack, just
-     * a single set.
+     * a single set. Only flattenInheritsFrom recurses while a file is in here.
      */
     private final Set<Str> mStack = new HashSet();
 
+    /**
+     * Number of errors getFileIndex has reported, so callers can tell whether
+     * a traversal was clean.
+     */
+    private int mTraversalErrors;
+
+    /**
+     * Files whose whole subtree has already been handled by flattenInheritsFrom
+     * without any errors.
+     */
+    private final Set<String> mInheritsFromDone = new HashSet();
 
-    private FlattenConfig(Errors errors, GenericConfig genericConfig) {
+    /**
+     * Whether to run the LIST, SINGLE and UNKNOWN passes at the same time.
+     */
+    private final boolean mParallel;
+
+    private final Profiler mProfiler;
+
+    private FlattenConfig(Errors errors, GenericConfig genericConfig, boolean parallel,
+            Profiler profiler) {
         mErrors = errors;
+        mParallel = parallel;
+        mProfiler = profiler;
         mGenericConfig = genericConfig;
-        mGenericConfigs = genericConfig.getFiles();
+        for (GenericConfig.ConfigFile file: genericConfig.getFiles().values()) {
+            mIndex.put(file.getFilename(), new FileIndex(genericConfig, file));
+        }
         mVariables = mResult.getValues();
 
         // Base class fields
@@ -61,11 +84,178 @@ public class FlattenConfig {
      * has a slightly different algorithm.
      */
     public static FlatConfig flatten(Errors errors, GenericConfig genericConfig) {
-        final FlattenConfig flattener = new FlattenConfig(errors, genericConfig);
-        return flattener.flattenImpl();
+        return flatten(errors, genericConfig, false);
     }
 
-    private FlatConfig flattenImpl() {
+    /**
+     * Flatten a GenericConfig to a FlatConfig.
+     *
+     * If 'parallel' is true, the single, list and unknown passes are run at the same
+     * time on the common ForkJoinPool. The result, including the order of any errors,
+     * is the same either way.
+     */
+    public static FlatConfig flatten(Errors errors, GenericConfig genericConfig,
+            boolean parallel) {
+        return flatten(errors, genericConfig, parallel, Profiler.DISABLED);
+    }
+
+    /**
+     * Flatten a GenericConfig to a FlatConfig, recording each pass in 'profiler'.
+     */
+    public static FlatConfig flatten(Errors errors, GenericConfig genericConfig,
+            boolean parallel, Profiler profiler) {
+        final FlattenConfig flattener = new FlattenConfig(errors, genericConfig, parallel,
+                profiler);
+        return flattener.flattenImpl(null, null);
+    }
+
+    /**
+     * Flatten a GenericConfig to a FlatConfig, reusing the result of flattening an
+     * earlier version of it, for example after one makefile was edited.
+     * <p>
+     * If the inherit graph is the same, only the variables that are assigned in the
+     * files that changed are recomputed, and everything else is copied from
+     * 'previousFlat'. Otherwise this is the same as flatten(). Either way, the result
+     * is the same as flatten(errors, genericConfig).
+     */
+    public static FlatConfig flattenIncremental(Errors errors, GenericConfig genericConfig,
+            GenericConfig previousGeneric, FlatConfig previousFlat) {
+        return flattenIncremental(errors, genericConfig, previousGeneric, previousFlat,
+                false, Profiler.DISABLED);
+    }
+
+    /**
+     * Same as above, running the passes in parallel if 'parallel' is set and recording
+     * each pass in 'profiler'.
+     */
+    public static FlatConfig flattenIncremental(Errors errors, GenericConfig genericConfig,
+            GenericConfig previousGeneric, FlatConfig previousFlat, boolean parallel,
+            Profiler profiler) {
+        final FlattenConfig flattener = new FlattenConfig(errors, genericConfig, parallel,
+                profiler);
+        final Set<String> changed = findChangedVars(previousGeneric, genericConfig);
+        if (changed == null) {
+            return flattener.flattenImpl(null, null);
+        }
+        return flattener.flattenImpl(previousFlat, changed);
+    }
+
+    /**
+     * Return the names of the variables that are assigned differently in 'after' than
+     * in 'before', or null if anything else, including the inherit graph, is different.
+     */
+    // VisibleForTesting
+    static Set<String> findChangedVars(GenericConfig before, GenericConfig after) {
+        if (!before.getRootNodes().equals(after.getRootNodes())
+                || !before.getProductVars().equals(after.getProductVars())
+                || !before.getFiles().keySet().equals(after.getFiles().keySet())) {
+            return null;
+        }
+        final HashSet<String> result = new HashSet();
+        for (GenericConfig.ConfigFile afterFile: after.getFiles().values()) {
+            final List<GenericConfig.Statement> beforeStatements
+                    = before.getFiles().get(afterFile.getFilename()).getStatements();
+            final List<GenericConfig.Statement> afterStatements = afterFile.getStatements();
+            if (sameStatements(beforeStatements, afterStatements)) {
+                continue;
+            }
+            if (!sameInherits(beforeStatements, afterStatements)) {
+                return null;
+            }
+            // Where exactly the assignments moved relative to the inherits matters,
+            // so just take all of them from both versions.
+            addAssignedVars(result, beforeStatements);
+            addAssignedVars(result, afterStatements);
+        }
+        return result;
+    }
+
+    private static boolean sameStatements(List<GenericConfig.Statement> a,
+            List<GenericConfig.Statement> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            final GenericConfig.Statement sa = a.get(i);
+            final GenericConfig.Statement sb = b.get(i);
+            if (sa instanceof GenericConfig.Assign && sb instanceof GenericConfig.Assign) {
+                final GenericConfig.Assign aa = (GenericConfig.Assign)sa;
+                final GenericConfig.Assign ab = (GenericConfig.Assign)sb;
+                if (!aa.getName().equals(ab.getName())
+                        || !sameStrs(aa.getValue(), ab.getValue())) {
+                    return false;
+                }
+            } else if (sa instanceof GenericConfig.Inherit && sb instanceof GenericConfig.Inherit) {
+                if (!sameStr(((GenericConfig.Inherit)sa).getFilename(),
+                            ((GenericConfig.Inherit)sb).getFilename())) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameInherits(List<GenericConfig.Statement> a,
+            List<GenericConfig.Statement> b) {
+        final ArrayList<Str> inheritsA = new ArrayList();
+        for (GenericConfig.Statement statement: a) {
+            if (statement instanceof GenericConfig.Inherit) {
+                inheritsA.add(((GenericConfig.Inherit)statement).getFilename());
+            }
+        }
+        final ArrayList<Str> inheritsB = new ArrayList();
+        for (GenericConfig.Statement statement: b) {
+            if (statement instanceof GenericConfig.Inherit) {
+                inheritsB.add(((GenericConfig.Inherit)statement).getFilename());
+            }
+        }
+        return sameStrs(inheritsA, inheritsB);
+    }
+
+    /**
+     * Str.equals ignores the position, but the position ends up in the results too.
+     */
+    private static boolean sameStr(Str a, Str b) {
+        if (!a.equals(b)) {
+            return false;
+        }
+        final Position pa = a.getPosition();
+        final Position pb = b.getPosition();
+        if (pa == null || pb == null) {
+            return pa == pb;
+        }
+        return Objects.equals(pa.getFile(), pb.getFile()) && pa.getLine() == pb.getLine();
+    }
+
+    private static boolean sameStrs(List<Str> a, List<Str> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!sameStr(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addAssignedVars(Set<String> result,
+            List<GenericConfig.Statement> statements) {
+        for (GenericConfig.Statement statement: statements) {
+            if (statement instanceof GenericConfig.Assign) {
+                result.add(((GenericConfig.Assign)statement).getName());
+            }
+        }
+    }
+
+    /**
+     * If 'previous' is null, flatten everything. Otherwise, start with the values from
+     * 'previous', and only recompute the variables in 'only'.
+     */
+    @SuppressWarnings("try")
+    private FlatConfig flattenImpl(FlatConfig previous, Set<String> only) {
         final List<String> rootNodes = mGenericConfig.getRootNodes();
         if (rootNodes.size() == 0) {
             mErrors.ERROR_DUMPCONFIG.add("No root nodes in PRODUCTS phase.");
@@ -84,10 +274,38 @@ public class FlattenConfig {
         // TODO: Do we need to worry about the initial state of variables? Anything
         // that from the product config
 
-        flattenListVars(root);
-        flattenSingleVars(root);
-        flattenUnknownVars(root);
-        flattenInheritsFrom(root);
+        if (previous != null) {
+            for (Map.Entry<String, Value> entry: previous.getValues().entrySet()) {
+                if (!only.contains(entry.getKey())) {
+                    mVariables.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        // These only read mIndex, and each handles a different set of variables, so
+        // they can run separately, and then be combined in a fixed order.
+        final Pass listPass = new Pass(only);
+        final Pass singlePass = new Pass(only);
+        final Pass unknownPass = new Pass(only);
+        if (mParallel) {
+            ForkJoinTask.invokeAll(
+                    ForkJoinTask.adapt(() -> runListPass(root, listPass)),
+                    ForkJoinTask.adapt(() -> runSinglePass(root, singlePass)),
+                    ForkJoinTask.adapt(() -> runUnknownPass(root, unknownPass)));
+        } else {
+            runListPass(root, listPass);
+            runSinglePass(root, singlePass);
+            runUnknownPass(root, unknownPass);
+        }
+        listPass.finish();
+        singlePass.finish();
+        unknownPass.finish();
+
+        // This one needs to go after flattenUnknownVars, because it overrides it. It is
+        // always run in full, because it's cheap, and so that its errors are reported.
+        try (Profiler.Phase phase = mProfiler.start("flatten_inherits_from")) {
+            flattenInheritsFrom(root);
+        }
 
         setDefaultKnownVars();
 
@@ -98,106 +316,203 @@ public class FlattenConfig {
         return mResult;
     }
 
-    interface AssignCallback {
-        void onAssignStatement(GenericConfig.Assign assign);
+    @SuppressWarnings("try")
+    private void runListPass(String root, Pass pass) {
+        try (Profiler.Phase phase = mProfiler.start("flatten_list")) {
+            flattenListVars(root, pass);
+        }
     }
 
-    interface InheritCallback {
-        void onInheritStatement(GenericConfig.Inherit assign);
+    @SuppressWarnings("try")
+    private void runSinglePass(String root, Pass pass) {
+        try (Profiler.Phase phase = mProfiler.start("flatten_single")) {
+            flattenSingleVars(root, pass);
+        }
     }
 
-    /**
-     * Do a bunch of validity checks, and then iterate through each of the statements
-     * in the given file.  For Assignments, the callback is only called for variables
-     * matching varType.
-     *
-     * Adds makefiles which have been traversed to the 'seen' set, and will not traverse
-     * into an inherit statement if its makefile has already been seen.
-     */
-    private void forEachStatement(Str filename, VarType varType, Set<String> seen,
-            AssignCallback assigner, InheritCallback inheriter) {
-        if (mStack.contains(filename)) {
-            mErrors.ERROR_INFINITE_RECURSION.add(filename.getPosition(),
-                    "File is already in the inherit-product stack: " + filename);
-            return;
+    @SuppressWarnings("try")
+    private void runUnknownPass(String root, Pass pass) {
+        try (Profiler.Phase phase = mProfiler.start("flatten_unknown")) {
+            flattenUnknownVars(root, pass);
         }
+    }
 
-        mStack.add(filename);
-        try {
-            final GenericConfig.ConfigFile genericFile = mGenericConfigs.get(filename.toString());
-
-            if (genericFile == null) {
-                mErrors.ERROR_MISSING_CONFIG_FILE.add(filename.getPosition(),
-                        "Unable to find config file: " + filename);
-                return;
-            }
-
-            for (final GenericConfig.Statement statement: genericFile.getStatements()) {
+    /**
+     * The statements of one config file, arranged the way the flatten passes use them.
+     * These are built once for every file and shared by all of the passes, so walking
+     * a file is just walking an array.
+     */
+    private static class FileIndex {
+        /**
+         * Assignments to LIST variables and all of the inherits, in source order.
+         */
+        final GenericConfig.Statement[] mListStatements;
+
+        /**
+         * Assignments to SINGLE variables, in source order.
+         */
+        final GenericConfig.Assign[] mSingleAssigns;
+
+        /**
+         * Assignments to all other variables, in source order.
+         */
+        final GenericConfig.Assign[] mUnknownAssigns;
+
+        /**
+         * All of the inherits, in source order.
+         */
+        final GenericConfig.Inherit[] mInherits;
+
+        /**
+         * One inherit per child file, in alphabetical order.
+         */
+        final GenericConfig.Inherit[] mAlphaInherits;
+
+        /**
+         * Value for PRODUCTS.<filename>.INHERITS_FROM, or null if there are no children.
+         */
+        final String mInheritsFrom;
+
+        FileIndex(ConfigBase config, GenericConfig.ConfigFile file) {
+            final ArrayList<GenericConfig.Statement> listStatements = new ArrayList();
+            final ArrayList<GenericConfig.Assign> singleAssigns = new ArrayList();
+            final ArrayList<GenericConfig.Assign> unknownAssigns = new ArrayList();
+            final ArrayList<GenericConfig.Inherit> inherits = new ArrayList();
+            final TreeMap<Str, GenericConfig.Inherit> alpha = new TreeMap();
+
+            for (final GenericConfig.Statement statement: file.getStatements()) {
                 if (statement instanceof GenericConfig.Assign) {
-                    if (assigner != null) {
-                        final GenericConfig.Assign assign = (GenericConfig.Assign)statement;
-                        final String varName = assign.getName();
-
-                        // Assert that we're not stomping on another variable, which
-                        // really should be impossible at this point.
-                        assertVarType(filename, varName);
-
-                        if (mGenericConfig.getVarType(varName) == varType) {
-                            assigner.onAssignStatement(assign);
-                        }
+                    final GenericConfig.Assign assign = (GenericConfig.Assign)statement;
+                    switch (config.getVarType(assign.getName())) {
+                        case LIST:
+                            listStatements.add(assign);
+                            break;
+                        case SINGLE:
+                            singleAssigns.add(assign);
+                            break;
+                        default:
+                            unknownAssigns.add(assign);
+                            break;
                     }
                 } else if (statement instanceof GenericConfig.Inherit) {
-                    if (inheriter != null) {
-                        final GenericConfig.Inherit inherit = (GenericConfig.Inherit)statement;
-                        if (seen != null) {
-                            if (seen.contains(inherit.getFilename().toString())) {
-                                continue;
-                            }
-                            seen.add(inherit.getFilename().toString());
-                        }
-                        inheriter.onInheritStatement(inherit);
+                    final GenericConfig.Inherit inherit = (GenericConfig.Inherit)statement;
+                    listStatements.add(inherit);
+                    inherits.add(inherit);
+                    alpha.put(inherit.getFilename(), inherit);
+                }
+            }
+
+            mListStatements = listStatements.toArray(new GenericConfig.Statement[0]);
+            mSingleAssigns = singleAssigns.toArray(new GenericConfig.Assign[0]);
+            mUnknownAssigns = unknownAssigns.toArray(new GenericConfig.Assign[0]);
+            mInherits = inherits.toArray(new GenericConfig.Inherit[0]);
+            mAlphaInherits = alpha.values().toArray(new GenericConfig.Inherit[0]);
+
+            if (mAlphaInherits.length > 0) {
+                // Build the space separated list.
+                final StringBuilder val = new StringBuilder();
+                for (GenericConfig.Inherit inherit: mAlphaInherits) {
+                    if (val.length() > 0) {
+                        val.append(' ');
                     }
+                    val.append(inherit.getFilename());
                 }
+                mInheritsFrom = val.toString();
+            } else {
+                mInheritsFrom = null;
             }
-        } finally {
-            // Also executes after return statements, so we always remove this.
-            mStack.remove(filename);
         }
     }
 
     /**
-     * Call 'inheriter' for each child of 'filename' in alphabetical order.
+     * The state of one of the LIST, SINGLE or UNKNOWN passes. Each pass gets its own,
+     * so that they don't touch anything shared while they are running.
      */
-    private void forEachInheritAlpha(final Str filename, VarType varType, Set<String> seen,
-            InheritCallback inheriter) {
-        final TreeMap<Str, GenericConfig.Inherit> alpha = new TreeMap();
-        forEachStatement(filename, varType, null, null,
-                (inherit) -> {
-                    alpha.put(inherit.getFilename(), inherit);
-                });
-        for (final GenericConfig.Inherit inherit: alpha.values()) {
-            // Handle 'seen' here where we actaully call back, not before, so that
-            // the proper traversal order is preserved.
-            if (seen != null) {
-                if (seen.contains(inherit.getFilename().toString())) {
-                    continue;
-                }
-                seen.add(inherit.getFilename().toString());
+    private class Pass {
+        /**
+         * The variables this pass has set.
+         */
+        final HashMap<String, Value> mVars = new HashMap();
+
+        /**
+         * The words of the LIST variables this pass has set.
+         */
+        final WordList.Pool mWordPool = new WordList.Pool();
+
+        /**
+         * If not null, only these variables are computed.
+         */
+        private final Set<String> mOnly;
+
+        /**
+         * Missing files, in the order they were found.
+         */
+        private final ArrayList<Str> mMissingFiles = new ArrayList();
+
+        Pass(Set<String> only) {
+            mOnly = only;
+        }
+
+        /**
+         * Return whether this pass computes 'varName'.
+         */
+        boolean wants(String varName) {
+            return mOnly == null || mOnly.contains(varName);
+        }
+
+        /**
+         * Return the index for 'filename', or null if it doesn't exist. Unlike
+         * FlattenConfig.getFileIndex, this doesn't check mStack, because these
+         * passes never recurse from inside a file.
+         */
+        FileIndex getFileIndex(Str filename) {
+            final FileIndex index = mIndex.get(filename.toString());
+            if (index == null) {
+                mMissingFiles.add(filename);
+            }
+            return index;
+        }
+
+        /**
+         * Report this pass's errors and add its variables to mVariables.
+         */
+        void finish() {
+            for (Str filename: mMissingFiles) {
+                mErrors.ERROR_MISSING_CONFIG_FILE.add(filename.getPosition(),
+                        "Unable to find config file: " + filename);
             }
-            inheriter.onInheritStatement(inherit);
+            // We know there will be no collisions because each pass handles a
+            // different type of variable.
+            mVariables.putAll(mVars);
         }
     }
 
     /**
-     * Traverse the inheritance hierarchy, setting list-value product config variables.
+     * Return the index for 'filename', or report an error and return null if it is
+     * already in the inherit stack or doesn't exist.
      */
-    private void flattenListVars(final String filename) {
-        Map<String, Value> vars = flattenListVars(new Str(filename), new HashSet());
-        // Add the result of the recursion to mVariables. We know there will be
-        // no collisions because this function only handles list variables.
-        for (Map.Entry<String, Value> entry: vars.entrySet()) {
-            mVariables.put(entry.getKey(), entry.getValue());
+    private FileIndex getFileIndex(Str filename) {
+        if (mStack.contains(filename)) {
+            mTraversalErrors++;
+            mErrors.ERROR_INFINITE_RECURSION.add(filename.getPosition(),
+                    "File is already in the inherit-product stack: " + filename);
+            return null;
+        }
+
+        final FileIndex index = mIndex.get(filename.toString());
+        if (index == null) {
+            mTraversalErrors++;
+            mErrors.ERROR_MISSING_CONFIG_FILE.add(filename.getPosition(),
+                    "Unable to find config file: " + filename);
         }
+        return index;
+    }
+
+    /**
+     * Traverse the inheritance hierarchy, setting list-value product config variables.
+     */
+    private void flattenListVars(final String filename, Pass pass) {
+        pass.mVars.putAll(flattenListVars(new Str(filename), pass, new HashSet()));
     }
 
     /**
@@ -206,9 +521,15 @@ public class FlattenConfig {
      *
      * This convoluted algorithm isn't ideal, but it matches what is in node_fns.mk.
      */
-    private Map<String, Value> flattenListVars(final Str filename, Set<String> seen) {
+    private Map<String, Value> flattenListVars(final Str filename, Pass pass,
+            Set<String> seen) {
         Map<String, Value> result = new HashMap();
 
+        final FileIndex index = pass.getFileIndex(filename);
+        if (index == null) {
+            return result;
+        }
+
         // Recurse into our children first in alphabetical order, building a map of
         // that filename to its flattened values.  The order matters here because
         // we will only look at each child once, and when a file appears multiple
@@ -217,29 +538,36 @@ public class FlattenConfig {
 
         // Child filename --> { varname --> value }
         final Map<Str, Map<String, Value>> children = new HashMap();
-        forEachInheritAlpha(filename, VarType.LIST, seen,
-                (inherit) -> {
-                    final Str child = inherit.getFilename();
-                    children.put(child, flattenListVars(child, seen));
-                });
+        for (final GenericConfig.Inherit inherit: index.mAlphaInherits) {
+            final Str child = inherit.getFilename();
+            if (!seen.add(child.toString())) {
+                continue;
+            }
+            children.put(child, flattenListVars(child, pass, seen));
+        }
 
         // Now, traverse the values again in the original source order to concatenate the values.
         // Note that the contcatenation order is *different* from the inherit order above.
-        forEachStatement(filename, VarType.LIST, null,
-                (assign) -> {
-                    assignToListVar(result, assign.getName(), assign.getValue());
-                },
-                (inherit) -> {
-                    final Map<String, Value> child = children.get(inherit.getFilename());
-                    // child == null happens if this node has been visited before.
-                    if (child != null) {
-                        for (Map.Entry<String, Value> entry: child.entrySet()) {
-                            final String varName = entry.getKey();
-                            final Value varVal = entry.getValue();
-                            appendToListVar(result, varName, varVal.getList());
-                        }
+        for (final GenericConfig.Statement statement: index.mListStatements) {
+            if (statement instanceof GenericConfig.Assign) {
+                final GenericConfig.Assign assign = (GenericConfig.Assign)statement;
+                if (pass.wants(assign.getName())) {
+                    assignToListVar(result, assign.getName(), assign.getValue(),
+                            pass.mWordPool);
+                }
+            } else {
+                final GenericConfig.Inherit inherit = (GenericConfig.Inherit)statement;
+                final Map<String, Value> child = children.get(inherit.getFilename());
+                // child == null happens if this node has been visited before.
+                if (child != null) {
+                    for (Map.Entry<String, Value> entry: child.entrySet()) {
+                        final String varName = entry.getKey();
+                        final Value varVal = entry.getValue();
+                        appendToListVar(result, varName, varVal.getWordList());
                     }
-                });
+                }
+            }
+        }
 
         return result;
     }
@@ -247,73 +575,91 @@ public class FlattenConfig {
     /**
      * Traverse the inheritance hierarchy, setting single-value product config variables.
      */
-    private void flattenSingleVars(final String filename) {
-        flattenSingleVars(new Str(filename), new HashSet(), new HashSet());
+    private void flattenSingleVars(final String filename, Pass pass) {
+        flattenSingleVars(new Str(filename), pass, new HashSet());
     }
 
-    private void flattenSingleVars(final Str filename, Set<String> seen1, Set<String> seen2) {
+    private void flattenSingleVars(final Str filename, Pass pass, Set<String> seen) {
         // flattenSingleVars has two loops.  The first sets all variables that are
         // defined for *this* file.  The second traverses through the inheritance,
         // to fill in values that weren't defined in this file.  The first appearance of
         // the variable is the one that wins.
 
-        forEachStatement(filename, VarType.SINGLE, seen1,
-                (assign) -> {
-                    final String varName = assign.getName();
-                    Value v = mVariables.get(varName);
-                    // Only take the first value that we see for single variables.
-                    Value value = mVariables.get(varName);
-                    if (!mVariables.containsKey(varName)) {
-                        final List<Str> valueList = assign.getValue();
-                        // There should never be more than one item in this list, because
-                        // SINGLE values should never be appended to.
-                        if (valueList.size() != 1) {
-                            final StringBuilder positions = new StringBuilder("[");
-                            for (Str s: valueList) {
-                                positions.append(s.getPosition());
-                            }
-                            positions.append(" ]");
-                            throw new RuntimeException("Value list found for SINGLE variable "
-                                    + varName + " size=" + valueList.size()
-                                    + "positions=" + positions.toString());
-                        }
-                        mVariables.put(varName,
-                                new Value(VarType.SINGLE,
-                                    valueList.get(0)));
+        final FileIndex index = pass.getFileIndex(filename);
+        if (index == null) {
+            return;
+        }
+
+        for (final GenericConfig.Assign assign: index.mSingleAssigns) {
+            final String varName = assign.getName();
+            // Only take the first value that we see for single variables.
+            if (pass.wants(varName) && !pass.mVars.containsKey(varName)) {
+                final List<Str> valueList = assign.getValue();
+                // There should never be more than one item in this list, because
+                // SINGLE values should never be appended to.
+                if (valueList.size() != 1) {
+                    final StringBuilder positions = new StringBuilder("[");
+                    for (Str s: valueList) {
+                        positions.append(s.getPosition());
                     }
-                }, null);
+                    positions.append(" ]");
+                    throw new RuntimeException("Value list found for SINGLE variable "
+                            + varName + " size=" + valueList.size()
+                            + "positions=" + positions.toString());
+                }
+                pass.mVars.put(varName,
+                        new Value(VarType.SINGLE,
+                            valueList.get(0)));
+            }
+        }
 
-        forEachInheritAlpha(filename, VarType.SINGLE, seen2,
-                (inherit) -> {
-                    flattenSingleVars(inherit.getFilename(), seen1, seen2);
-                });
+        for (final GenericConfig.Inherit inherit: index.mAlphaInherits) {
+            if (!seen.add(inherit.getFilename().toString())) {
+                continue;
+            }
+            flattenSingleVars(inherit.getFilename(), pass, seen);
+        }
     }
 
     /**
      * Traverse the inheritance hierarchy and flatten the values
      */
-    private void flattenUnknownVars(String filename) {
-        flattenUnknownVars(new Str(filename), new HashSet());
+    private void flattenUnknownVars(String filename, Pass pass) {
+        flattenUnknownVars(new Str(filename), pass, new HashSet());
     }
 
-    private void flattenUnknownVars(final Str filename, Set<String> seen) {
+    private void flattenUnknownVars(final Str filename, Pass pass, Set<String> seen) {
         // flattenUnknownVars has two loops: First to attempt to set the variable from
         // this file, and then a second loop to handle the inheritance.  This is odd
         // but it matches the order the files are included in node_fns.mk. The last appearance
         // of the value is the one that wins.
 
-        forEachStatement(filename, VarType.UNKNOWN, null,
-                (assign) -> {
-                    // Overwrite the current value with whatever is now in the file.
-                    mVariables.put(assign.getName(),
-                            new Value(VarType.UNKNOWN,
-                                flattenAssignList(assign, new Str(""))));
-                }, null);
+        final FileIndex index = pass.getFileIndex(filename);
+        if (index == null) {
+            return;
+        }
+
+        for (final GenericConfig.Assign assign: index.mUnknownAssigns) {
+            if (!pass.wants(assign.getName())) {
+                continue;
+            }
+
+            // Assert that we're not stomping on another variable, which
+            // really should be impossible at this point.
+            assertVarType(pass.mVars, filename, assign.getName());
 
-        forEachInheritAlpha(filename, VarType.UNKNOWN, seen,
-                (inherit) -> {
-                    flattenUnknownVars(inherit.getFilename(), seen);
-                });
+            // Overwrite the current value with whatever is now in the file.
+            pass.mVars.put(assign.getName(),
+                    new Value(VarType.UNKNOWN,
+                        flattenAssignList(assign, new Str(""))));
+        }
+
+        for (final GenericConfig.Inherit inherit: index.mAlphaInherits) {
+            if (!seen.add(inherit.getFilename().toString())) {
+                continue;
+            }
+            flattenUnknownVars(inherit.getFilename(), pass, seen);
+        }
     }
 
     String prefix = "";
@@ -328,42 +674,50 @@ public class FlattenConfig {
     /**
      * This flatten function, unlike the others visits all of the nodes regardless
      * of whether they have been seen before, because that's what the make code does.
+     * <p>
+     * Every visit to a file sets its variable to the same value, and the value of a
+     * file on the stack is always set again when it is popped, so once a subtree has
+     * been done without errors, doing it again can't change anything. Subtrees with
+     * errors are still revisited so that the errors are reported the same way.
      */
     private void flattenInheritsFrom(final Str filename) {
-        // Recurse, and gather the list our chlidren
-        final TreeSet<Str> children = new TreeSet();
-        forEachStatement(filename, VarType.LIST, null, null,
-                (inherit) -> {
-                    children.add(inherit.getFilename());
+        if (mInheritsFromDone.contains(filename.toString())) {
+            return;
+        }
+        final int errorsBefore = mTraversalErrors;
+
+        // Recurse into our children
+        final FileIndex index = getFileIndex(filename);
+        if (index != null) {
+            mStack.add(filename);
+            try {
+                for (final GenericConfig.Inherit inherit: index.mInherits) {
                     flattenInheritsFrom(inherit.getFilename());
-                });
-
-        final String varName = "PRODUCTS." + filename + ".INHERITS_FROM";
-        if (children.size() > 0) {
-            // Build the space separated list.
-            boolean first = true;
-            final StringBuilder val = new StringBuilder();
-            for (Str child: children) {
-                if (first) {
-                    first = false;
-                } else {
-                    val.append(' ');
                 }
-                val.append(child);
+            } finally {
+                mStack.remove(filename);
             }
-            mVariables.put(varName, new Value(VarType.UNKNOWN, new Str(val.toString())));
+        }
+
+        final String varName = "PRODUCTS." + filename + ".INHERITS_FROM";
+        if (index != null && index.mInheritsFrom != null) {
+            mVariables.put(varName, new Value(VarType.UNKNOWN, new Str(index.mInheritsFrom)));
         } else {
             // Clear whatever flattenUnknownVars happened to have put in.
             mVariables.remove(varName);
         }
+
+        if (mTraversalErrors == errorsBefore) {
+            mInheritsFromDone.add(filename.toString());
+        }
     }
 
     /**
      * Throw an exception if there's an existing variable with a different type.
      */
-    private void assertVarType(Str filename, String varName) {
+    private void assertVarType(Map<String, Value> vars, Str filename, String varName) {
         if (mGenericConfig.getVarType(varName) == VarType.UNKNOWN) {
-            final Value prevValue = mVariables.get(varName);
+            final Value prevValue = vars.get(varName);
             if (prevValue != null
                     && prevValue.getVarType() != VarType.UNKNOWN) {
                 throw new RuntimeException("Mismatched var types:"
@@ -381,47 +735,40 @@ public class FlattenConfig {
      * and contents of the values. Each value in the list was originally separated
      * by the previous value.
      */
-    private void assignToListVar(Map<String, Value> vars, String varName, List<Str> items) {
+    private static void assignToListVar(Map<String, Value> vars, String varName,
+            List<Str> items, WordList.Pool pool) {
         final Value value = vars.get(varName);
-        final List<Str> orig = value == null ? new ArrayList() : value.getList();
-        final List<Str> result = new ArrayList();
-        if (items.size() > 0) {
-            for (int i = 0; i < items.size(); i++) {
-                if (i != 0) {
-                    result.addAll(orig);
-                }
-                final Str item = items.get(i);
-                addWords(result, item);
+        final WordList orig = value == null ? pool.empty() : value.getWordList();
+        WordList result = pool.empty();
+        for (int i = 0; i < items.size(); i++) {
+            if (i != 0) {
+                result = result.concat(orig);
             }
+            result = result.concat(splitWords(pool, items.get(i)));
         }
         vars.put(varName, new Value(result));
     }
 
     /**
-     * Appends all of the words in in 'items' to an entry in vars keyed by 'varName',
+     * Appends all of the words in in 'words' to an entry in vars keyed by 'varName',
      * creating one if necessary.
      */
-    private static void appendToListVar(Map<String, Value> vars, String varName, List<Str> items) {
-        Value value = vars.get(varName);
-        if (value == null) {
-            value = new Value(new ArrayList());
-            vars.put(varName, value);
-        }
-        final List<Str> out = value.getList();
-        for (Str item: items) {
-            addWords(out, item);
-        }
+    private static void appendToListVar(Map<String, Value> vars, String varName,
+            WordList words) {
+        final Value value = vars.get(varName);
+        vars.put(varName, new Value(value == null ? words : value.getWordList().concat(words)));
     }
 
     /**
-     * Split 'item' on spaces, and add each of them as a word to 'out'.
+     * Split 'item' on spaces, and return each of them as a word.
      */
-    private static void addWords(List<Str> out, Str item) {
-        for (String word: RE_SPACE.split(item.toString().trim())) {
-            if (word.length() > 0) {
-                out.add(new Str(item.getPosition(), word));
-            }
+    private static WordList splitWords(WordList.Pool pool, Str item) {
+        final WordList.Builder builder = new WordList.Builder(pool);
+        final WhitespaceTokenizer words = new WhitespaceTokenizer(item.toString());
+        while (words.next()) {
+            builder.add(words.getWord(), item.getPosition());
         }
+        return builder.build();
     }
 
     /**
@@ -81,6 +81,13 @@ public class KatiCommandImpl implements KatiCommand {
         final ProcessBuilder builder = new ProcessBuilder(cmd);
         builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
         builder.redirectError(ProcessBuilder.Redirect.PIPE);
+        // Batch mode runs products other than the ones in our own environment.
+        if (mOptions.getProduct() != null) {
+            builder.environment().put("TARGET_PRODUCT", mOptions.getProduct());
+        }
+        if (mOptions.getVariant() != null) {
+            builder.environment().put("TARGET_BUILD_VARIANT", mOptions.getVariant());
+        }
 
         Process process = null;
 
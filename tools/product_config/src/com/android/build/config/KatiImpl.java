@@ -17,9 +17,16 @@
 package com.android.build.config;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +38,7 @@ public class KatiImpl implements Kati {
     private final Errors mErrors;
     private final Options mOptions;
     private final KatiCommand mCommand;
+    private final Profiler mProfiler;
 
     // TODO: Do we need to consider the whole or a greater subset of the
     // environment (or a hash of it?). In theory product-variant is enough, but we know
@@ -44,41 +52,114 @@ public class KatiImpl implements Kati {
         return Paths.get(getWorkDirPath(), "dumpconfig.csv").toString();
     }
 
+    private String getDumpConfigFifoPath() {
+        return Paths.get(getWorkDirPath(), "dumpconfig.fifo").toString();
+    }
+
     public KatiImpl(Errors errors, Options options) {
-        this(errors, options, new KatiCommandImpl(errors, options));
+        this(errors, options, Profiler.DISABLED);
+    }
+
+    public KatiImpl(Errors errors, Options options, Profiler profiler) {
+        this(errors, options, new KatiCommandImpl(errors, options), profiler);
     }
 
     // VisibleForTesting
     public KatiImpl(Errors errors, Options options, KatiCommand command) {
+        this(errors, options, command, Profiler.DISABLED);
+    }
+
+    // VisibleForTesting
+    public KatiImpl(Errors errors, Options options, KatiCommand command, Profiler profiler) {
         mErrors = errors;
         mOptions = options;
         mCommand = command;
+        mProfiler = profiler;
+    }
+
+    private String getDumpConfigCachePath() {
+        return Paths.get(getWorkDirPath(), "dumpconfig.cache").toString();
+    }
+
+    /**
+     * Everything other than the makefiles that goes into running dumpconfig.mk.
+     */
+    private String getDumpConfigCacheKey() {
+        return "ckati=" + mOptions.getCKatiBin()
+                + " product=" + mOptions.getProduct()
+                + " variant=" + mOptions.getVariant()
+                + " args=" + String.join(" ", getKatiArgs(getDumpConfigCsvPath()));
+    }
+
+    private DumpConfigCache newDumpConfigCache() {
+        return new DumpConfigCache(getDumpConfigCacheFile(), getDumpConfigCacheKey());
+    }
+
+    /**
+     * Return the file that --dumpconfig_cache saves to.
+     */
+    public File getDumpConfigCacheFile() {
+        return new File(getDumpConfigCachePath());
+    }
+
+    /**
+     * Return whether loadProductConfig would use the dumpconfig cache instead of
+     * running kati.
+     */
+    public boolean isDumpConfigCacheUpToDate() {
+        return newDumpConfigCache().isUpToDate();
     }
 
     @Override
+    @SuppressWarnings("try")
     public Map<String, MakeConfig> loadProductConfig() {
-        final String csvPath = getDumpConfigCsvPath();
-        try {
-            File workDir = new File(getWorkDirPath());
+        File workDir = new File(getWorkDirPath());
+
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            mErrors.ERROR_KATI.add("Unable to create directory: " + workDir);
+            return null; // TODO: throw exception?
+        }
+
+        if (!mOptions.getDumpConfigCache()) {
+            return runDumpConfig();
+        }
+
+        final DumpConfigCache cache = newDumpConfigCache();
+        Map<String, MakeConfig> result;
+        try (Profiler.Phase phase = mProfiler.start("dumpconfig_cache_load")) {
+            result = cache.load();
+        }
+        if (result != null) {
+            return result;
+        }
 
-            if ((workDir.exists() && !workDir.isDirectory()) || !workDir.mkdirs()) {
-                mErrors.ERROR_KATI.add("Unable to create directory: " + workDir);
-                return null; // TODO: throw exception?
+        final int entryCount = mErrors.getEntryCount();
+        result = runDumpConfig();
+        // Don't cache results that had warnings, or they wouldn't be reported the next
+        // time.
+        if (result != null && mErrors.getEntryCount() == entryCount) {
+            try (Profiler.Phase phase = mProfiler.start("dumpconfig_cache_save")) {
+                cache.save(result);
             }
+        }
+        return result;
+    }
 
-            String out = mCommand.run(new String[] {
-                    "-f", "build/make/core/dumpconfig.mk",
-                    "DUMPCONFIG_FILE=" + csvPath
-                });
+    /**
+     * Run kati on dumpconfig.mk and parse what it writes.
+     */
+    private Map<String, MakeConfig> runDumpConfig() {
+        final String csvPath = getDumpConfigCsvPath();
 
-            if (!out.contains("***DONE***")) {
-                mErrors.ERROR_KATI.add(
-                        "Unknown error with kati, but it didn't print ***DONE*** message");
-                return null; // TODO: throw exception?
+        if (mOptions.getStreamDumpConfig()) {
+            final String fifoPath = getDumpConfigFifoPath();
+            if (makeFifo(fifoPath)) {
+                return loadProductConfigStreaming(fifoPath);
             }
-            // TODO: Check that output was good.
-        } catch (KatiCommand.KatiException ex) {
-            mErrors.ERROR_KATI.add("Error running kati:\n" + ex.getStderr());
+            // Otherwise fall back to going through the file.
+        }
+
+        if (!runKati(csvPath)) {
             return null;
         }
 
@@ -87,15 +168,8 @@ public class KatiImpl implements Kati {
             return null;
         }
 
-        try (FileReader reader = new FileReader(csvPath)) {
-            Map<String, MakeConfig> makeConfigs = DumpConfigParser.parse(mErrors, csvPath, reader);
-
-            if (makeConfigs.size() == 0) {
-                // TODO: Issue error?
-                return null;
-            }
-
-            return makeConfigs;
+        try {
+            return checkResult(parseDumpConfig(csvPath));
         } catch (CsvParser.ParseException ex) {
             mErrors.ERROR_KATI.add(new Position(csvPath, ex.getLine()),
                     "Unable to parse output of dumpconfig.mk: " + ex.getMessage());
@@ -106,4 +180,230 @@ public class KatiImpl implements Kati {
             return null; // TODO: throw exception?
         }
     }
+
+    private static String[] getKatiArgs(String dumpconfigFile) {
+        return new String[] {
+            "-f", "build/make/core/dumpconfig.mk",
+            "DUMPCONFIG_FILE=" + dumpconfigFile
+        };
+    }
+
+    /**
+     * Run kati on dumpconfig.mk, writing its output to 'dumpconfigFile'. Returns whether
+     * it succeeded, adding an error if it didn't.
+     */
+    @SuppressWarnings("try")
+    private boolean runKati(String dumpconfigFile) {
+        try (Profiler.Phase phase = mProfiler.start("kati")) {
+            String out = mCommand.run(getKatiArgs(dumpconfigFile));
+
+            if (!out.contains("***DONE***")) {
+                mErrors.ERROR_KATI.add(
+                        "Unknown error with kati, but it didn't print ***DONE*** message");
+                return false; // TODO: throw exception?
+            }
+            // TODO: Check that output was good.
+            return true;
+        } catch (KatiCommand.KatiException ex) {
+            mErrors.ERROR_KATI.add("Error running kati:\n" + ex.getStderr());
+            return false;
+        }
+    }
+
+    private Map<String, MakeConfig> checkResult(Map<String, MakeConfig> makeConfigs) {
+        if (makeConfigs.size() == 0) {
+            // TODO: Issue error?
+            return null;
+        }
+        return makeConfigs;
+    }
+
+    /**
+     * Runnable that parses the output of dumpconfig.mk from a FIFO while kati is
+     * still writing to it.
+     * <p>
+     * Errors go to a separate Errors object, so they can be left out if kati failed.
+     * In that case the parser only sees whatever kati wrote before it stopped, and its
+     * errors would just be noise next to the real one.
+     */
+    private class FifoParser implements Runnable {
+        private final String mPath;
+        private final Errors mParserErrors = new Errors();
+        private Map<String, MakeConfig> mResult;
+        private Exception mException;
+
+        /**
+         * Set if the FIFO couldn't be opened for reading.
+         */
+        private volatile boolean mOpenFailed;
+
+        FifoParser(String path) {
+            mPath = path;
+            mParserErrors.setMaxEntriesPerCategory(mErrors.getMaxEntriesPerCategory());
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public void run() {
+            final FileReader reader;
+            try {
+                reader = new FileReader(mPath);
+            } catch (IOException ex) {
+                mException = ex;
+                mOpenFailed = true;
+                // The other thread is waiting to open the FIFO for writing, which doesn't
+                // return until something opens it for reading. Try once more, just to
+                // let it go.
+                try {
+                    new FileInputStream(mPath).close();
+                } catch (IOException ex2) {
+                }
+                return;
+            }
+            try (reader;
+                    Profiler.Phase phase = mProfiler.start("dumpconfig_parse")) {
+                try {
+                    mResult = DumpConfigParser.parse(mParserErrors, mPath, reader);
+                } catch (CsvParser.ParseException | IOException | RuntimeException ex) {
+                    mException = ex;
+                } finally {
+                    // If parsing stopped early, keep reading so kati doesn't block
+                    // forever on a full pipe.
+                    final char[] buf = new char[16*1024];
+                    while (reader.read(buf, 0, buf.length) >= 0) {
+                    }
+                }
+            } catch (IOException ex) {
+                if (mException == null) {
+                    mException = ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run kati with DUMPCONFIG_FILE pointing at a FIFO, and parse the output as it is
+     * written instead of waiting for kati to finish and reading it back from disk.
+     */
+    @SuppressWarnings("try")
+    private Map<String, MakeConfig> loadProductConfigStreaming(String fifoPath) {
+        final FifoParser parser = new FifoParser(fifoPath);
+        final Thread parserThread = new Thread(parser, "dumpconfig_parser");
+        parserThread.start();
+
+        boolean katiOk = false;
+        // dumpconfig.mk opens and closes the file for each line it writes. Hold the
+        // FIFO open for writing the whole time kati is running so the parser doesn't
+        // see end of file in between. Opening it waits for the parser to open the
+        // other end.
+        try (FileOutputStream keepOpen = new FileOutputStream(fifoPath)) {
+            // If nothing is reading the FIFO, kati would block forever writing to it.
+            if (!parser.mOpenFailed) {
+                katiOk = runKati(fifoPath);
+            }
+        } catch (IOException ex) {
+            mErrors.ERROR_KATI.add("Unable to open " + fifoPath + ": " + ex.getMessage());
+        }
+        joinThread(parserThread);
+        new File(fifoPath).delete();
+
+        if (parser.mOpenFailed) {
+            mErrors.ERROR_KATI.add("Unable to read " + fifoPath + ": "
+                    + parser.mException.getMessage());
+            return null;
+        }
+        if (!katiOk) {
+            return null;
+        }
+        for (Errors.Entry entry: parser.mParserErrors.getEntries()) {
+            mErrors.getCategories().get(entry.getCategory().getCode())
+                    .add(entry.getPosition(), entry::getMessage);
+        }
+        if (parser.mException instanceof CsvParser.ParseException) {
+            mErrors.ERROR_KATI.add(
+                    new Position(fifoPath, ((CsvParser.ParseException)parser.mException).getLine()),
+                    "Unable to parse output of dumpconfig.mk: " + parser.mException.getMessage());
+            return null;
+        } else if (parser.mException instanceof IOException) {
+            mErrors.ERROR_KATI.add("Unable to read " + fifoPath + ": "
+                    + parser.mException.getMessage());
+            return null;
+        } else if (parser.mException instanceof RuntimeException) {
+            // Including Errors.FatalException, which should keep going up.
+            throw (RuntimeException)parser.mException;
+        }
+        return checkResult(parser.mResult);
+    }
+
+    /**
+     * Make a FIFO at 'path', replacing anything already there. Returns false if
+     * that isn't possible on this system.
+     */
+    private static boolean makeFifo(String path) {
+        new File(path).delete();
+        try {
+            final Process process = (new ProcessBuilder("mkfifo", path)).start();
+            while (true) {
+                try {
+                    return process.waitFor() == 0;
+                } catch (InterruptedException ex) {
+                }
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Wrap Thread.join() because it throws InterruptedException.
+     */
+    private static void joinThread(Thread thread) {
+        while (true) {
+            try {
+                thread.join();
+                return;
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /**
+     * Parse the file written by dumpconfig.mk. If possible the file is memory mapped and
+     * the UTF-8 is parsed directly, otherwise it falls back to reading it with a Reader.
+     */
+    @SuppressWarnings("try")
+    private Map<String, MakeConfig> parseDumpConfig(String csvPath)
+            throws CsvParser.ParseException, IOException {
+        // CsvParser hands each line to DumpConfigParser as soon as it's read, so they
+        // are timed together.
+        try (Profiler.Phase phase = mProfiler.start("dumpconfig_parse")) {
+            final MappedByteBuffer bytes = mapFile(Paths.get(csvPath));
+            if (bytes != null) {
+                return DumpConfigParser.parse(mErrors, csvPath, bytes);
+            }
+            try (FileReader reader = new FileReader(csvPath)) {
+                return DumpConfigParser.parse(mErrors, csvPath, reader);
+            }
+        }
+    }
+
+    /**
+     * Memory map a whole file read-only. Returns null if it isn't a regular file, is
+     * too big for a single mapping, or mapping isn't supported.
+     */
+    private static MappedByteBuffer mapFile(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
 }
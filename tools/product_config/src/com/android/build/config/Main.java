@@ -16,29 +16,74 @@
 
 package com.android.build.config;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
     private final Errors mErrors;
     private final Options mOptions;
+    private final Profiler mProfiler;
+
+    /**
+     * An earlier run for the same target, whose results can be reused.
+     */
+    private Main mPrevious;
+
+    private GenericConfig mGenericConfig;
+    private FlatConfig mFlatConfig;
 
     public Main(Errors errors, Options options) {
+        this(errors, options, Profiler.DISABLED);
+    }
+
+    public Main(Errors errors, Options options, Profiler profiler) {
         mErrors = errors;
         mOptions = options;
+        mProfiler = profiler;
+    }
+
+    /**
+     * Set an earlier run for the same target, so that run() only has to re-flatten
+     * what changed since then.
+     */
+    void setPrevious(Main previous) {
+        mPrevious = previous;
+    }
+
+    Errors getErrors() {
+        return mErrors;
     }
 
+    @SuppressWarnings("try")
     void run() {
+        try (Profiler.Phase phase = mProfiler.start(
+                    "product_config " + mOptions.getProduct() + '-' + mOptions.getVariant())) {
+            runImpl();
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void runImpl() {
         // TODO: Check the build environment to make sure we're running in a real
         // build environment, e.g. actually inside a source tree, with TARGET_PRODUCT
         // and TARGET_BUILD_VARIANT defined, etc.
-        Kati kati = new KatiImpl(mErrors, mOptions);
+        Kati kati = new KatiImpl(mErrors, mOptions, mProfiler);
         Map<String, MakeConfig> makeConfigs = kati.loadProductConfig();
         if (makeConfigs == null || mErrors.hadError()) {
             return;
         }
+        if (mProfiler.isEnabled()) {
+            countMakeConfigs(makeConfigs);
+        }
         if (false) {
             for (MakeConfig makeConfig: (new TreeMap<String, MakeConfig>(makeConfigs)).values()) {
                 System.out.println();
@@ -49,8 +94,15 @@ public class Main {
             }
         }
 
-        ConvertMakeToGenericConfig m2g = new ConvertMakeToGenericConfig(mErrors);
-        GenericConfig generic = m2g.convert(makeConfigs);
+        GenericConfig generic;
+        try (Profiler.Phase phase = mProfiler.start("convert")) {
+            ConvertMakeToGenericConfig m2g = new ConvertMakeToGenericConfig(mErrors,
+                    mOptions.getParallelConvert());
+            generic = m2g.convert(makeConfigs);
+        }
+        if (mProfiler.isEnabled()) {
+            countGenericConfig(generic);
+        }
         if (false) {
             System.out.println("======================");
             System.out.println("REGENERATED MAKE FILES");
@@ -59,7 +111,24 @@ public class Main {
         }
 
         // TODO: Lookup shortened name as used in PRODUCT_NAME / TARGET_PRODUCT
-        FlatConfig flat = FlattenConfig.flatten(mErrors, generic);
+        FlatConfig flat;
+        try (Profiler.Phase phase = mProfiler.start("flatten")) {
+            if (mPrevious != null && mPrevious.mFlatConfig != null) {
+                flat = FlattenConfig.flattenIncremental(mErrors, generic,
+                        mPrevious.mGenericConfig, mPrevious.mFlatConfig,
+                        mOptions.getParallelFlatten(), mProfiler);
+            } else {
+                flat = FlattenConfig.flatten(mErrors, generic, mOptions.getParallelFlatten(),
+                        mProfiler);
+            }
+        }
+        if (mProfiler.isEnabled() && flat != null) {
+            countFlatConfig(flat);
+        }
+        // Don't keep a chain of every earlier run alive.
+        mPrevious = null;
+        mGenericConfig = generic;
+        mFlatConfig = flat;
         if (false) {
             System.out.println("=======================");
             System.out.println("FLATTENED VARIABLE LIST");
@@ -67,8 +136,10 @@ public class Main {
             MakeWriter.write(System.out, flat, 0);
         }
 
-        OutputChecker checker = new OutputChecker(flat);
-        checker.reportErrors(mErrors);
+        try (Profiler.Phase phase = mProfiler.start("output_checker")) {
+            OutputChecker checker = new OutputChecker(flat);
+            checker.reportErrors(mErrors);
+        }
 
         // TODO: Run kati and extract the variables and convert all that into starlark files.
 
@@ -78,21 +149,169 @@ public class Main {
         // out the make, soong and bazel input files.
     }
 
+    private void countMakeConfigs(Map<String, MakeConfig> makeConfigs) {
+        long files = 0;
+        long blocks = 0;
+        long vars = 0;
+        for (MakeConfig makeConfig: makeConfigs.values()) {
+            for (MakeConfig.ConfigFile file: makeConfig.getConfigFiles()) {
+                files++;
+                for (MakeConfig.Block block: file.getBlocks()) {
+                    blocks++;
+                    vars += block.getVarCount();
+                }
+            }
+        }
+        mProfiler.count("dumpconfig_files", files);
+        mProfiler.count("dumpconfig_blocks", blocks);
+        mProfiler.count("dumpconfig_variables", vars);
+    }
+
+    private void countGenericConfig(GenericConfig generic) {
+        long statements = 0;
+        long words = 0;
+        for (GenericConfig.ConfigFile file: generic.getFiles().values()) {
+            for (GenericConfig.Statement statement: file.getStatements()) {
+                statements++;
+                if (statement instanceof GenericConfig.Assign) {
+                    words += ((GenericConfig.Assign)statement).getValue().size();
+                }
+            }
+        }
+        mProfiler.count("generic_files", generic.getFiles().size());
+        mProfiler.count("generic_statements", statements);
+        mProfiler.count("generic_words", words);
+    }
+
+    private void countFlatConfig(FlatConfig flat) {
+        long words = 0;
+        for (Value value: flat.getValues().values()) {
+            words += value.getListSize();
+        }
+        mProfiler.count("flat_variables", flat.getValues().size());
+        mProfiler.count("flat_words", words);
+    }
+
+    /**
+     * Run each of the batch targets on a pool of mOptions.getJobs() threads, and print
+     * the errors for each of them, in the order they were given. Returns whether all of
+     * them succeeded.
+     */
+    boolean runBatch() {
+        final List<Options.Target> targets = mOptions.getBatchTargets();
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(mOptions.getJobs(), targets.size()));
+        final ArrayList<Future<Errors>> results = new ArrayList();
+        try {
+            for (Options.Target target: targets) {
+                results.add(pool.submit(() -> runTarget(target)));
+            }
+
+            final ArrayList<Options.Target> failed = new ArrayList();
+            for (int i = 0; i < targets.size(); i++) {
+                final Options.Target target = targets.get(i);
+                System.err.println("===== " + target + " =====");
+                boolean ok;
+                try {
+                    final Errors errors = getFuture(results.get(i));
+                    errors.printErrors(System.err);
+                    ok = !errors.hadError();
+                } catch (ExecutionException ex) {
+                    // A programming error in this tool, as in main().
+                    ex.getCause().printStackTrace(System.err);
+                    ok = false;
+                }
+                if (!ok) {
+                    failed.add(target);
+                }
+            }
+
+            System.err.println();
+            if (failed.size() > 0) {
+                System.err.println("FAILED " + failed.size() + " of " + targets.size()
+                        + " products: " + failed);
+            } else {
+                System.err.println("All " + targets.size() + " products succeeded.");
+            }
+            return failed.size() == 0;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run a single target of a batch with its own Errors object, which has the
+     * same levels as ours.
+     */
+    private Errors runTarget(Options.Target target) {
+        return runTarget(target, null).getErrors();
+    }
+
+    /**
+     * Run a single target with its own Errors object, which has the same levels as
+     * ours, and return the Main that ran it. 'previous' is an earlier result for the
+     * same target, or null.
+     */
+    Main runTarget(Options.Target target, Main previous) {
+        final Errors errors = new Errors();
+        for (Errors.Category category: mErrors.getCategories().values()) {
+            if (category.isLevelSettable()) {
+                errors.getCategories().get(category.getCode()).setLevel(category.getLevel());
+            }
+        }
+        final Main main = new Main(errors, mOptions.forTarget(target), mProfiler);
+        main.setPrevious(previous);
+        try {
+            main.run();
+        } catch (Errors.FatalException ex) {
+            // Already recorded in errors.
+        }
+        return main;
+    }
+
+    /**
+     * Wrap Future.get() because it throws InterruptedException.
+     */
+    private static <T> T getFuture(Future<T> future) throws ExecutionException {
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
     public static void main(String[] args) {
         Errors errors = new Errors();
         int exitCode = 0;
+        Options options = null;
+        Profiler profiler = Profiler.DISABLED;
 
         try {
-            Options options = Options.parse(errors, args, System.getenv());
+            options = Options.parse(errors, args, System.getenv());
             if (errors.hadError()) {
                 Options.printHelp(System.err);
                 System.err.println();
                 throw new CommandException();
             }
+            if (options.getProfileFile() != null) {
+                profiler = new Profiler();
+            }
 
             switch (options.getAction()) {
                 case DEFAULT:
-                    (new Main(errors, options)).run();
+                    (new Main(errors, options, profiler)).run();
+                    return;
+                case BATCH:
+                    if (!(new Main(errors, options, profiler)).runBatch()) {
+                        exitCode = 1;
+                    }
+                    return;
+                case SERVER:
+                    (new Server(errors, options)).run();
+                    return;
+                case CLIENT:
+                    exitCode = Server.runClient(errors, options);
                     return;
                 case HELP:
                     Options.printHelp(System.out);
@@ -110,6 +329,16 @@ public class Main {
             System.err.println();
             exitCode = 1;
         } finally {
+            // Write the profile even if it failed, since it shows how far it got.
+            if (profiler.isEnabled()) {
+                try {
+                    profiler.write(new File(options.getProfileFile()));
+                } catch (IOException ex) {
+                    errors.ERROR_PROFILE.add("Unable to write " + options.getProfileFile()
+                            + ": " + ex.getMessage());
+                }
+            }
+
             // Print errors and warnings
             errors.printErrors(System.err);
             if (errors.hadError()) {
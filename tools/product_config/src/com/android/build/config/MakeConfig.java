@@ -18,9 +18,14 @@ package com.android.build.config;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class MakeConfig extends ConfigBase {
     /**
@@ -28,6 +33,12 @@ public class MakeConfig extends ConfigBase {
      */
     protected final ArrayList<ConfigFile> mConfigFiles = new ArrayList();
 
+    /**
+     * The first ConfigFile added for each filename. Kept up to date by addConfigFile,
+     * so don't add to mConfigFiles directly.
+     */
+    private final HashMap<String, ConfigFile> mConfigFileIndex = new HashMap();
+
     public enum BlockType {
         UNSET,
         BEFORE,
@@ -66,30 +77,170 @@ public class MakeConfig extends ConfigBase {
 
     /**
      * A set of variables that were defined.
+     * <p>
+     * dumpconfig.mk writes out every variable for every block, but most of them are the
+     * same as in the block before. So a block can be made relative to the previous block
+     * in the same file, and then it only stores the variables that are different.
      */
     public static class Block {
         private final BlockType mBlockType;
-        private final TreeMap<String, Str> mValues = new TreeMap();
+        private final Block mPrevious;
+
+        /**
+         * Variables that were added or changed since mPrevious, or all of them if there
+         * is no mPrevious.
+         */
+        private final TreeMap<String, Str> mChanged = new TreeMap();
+
+        /**
+         * Variables in mPrevious that aren't in this block.
+         */
+        private final TreeSet<String> mRemoved = new TreeSet();
+
+        /**
+         * The number of variables in this block, including the unchanged ones.
+         */
+        private int mVarCount;
+
         private Str mInheritedFile;
 
+        /**
+         * Construct a block that stores all of its variables.
+         */
         public Block(BlockType blockType) {
+            this(blockType, null);
+        }
+
+        /**
+         * Construct a block that starts with the same variables as 'previous', and
+         * only stores the differences from it. If 'previous' is null, this is the same
+         * as Block(blockType).
+         */
+        public Block(BlockType blockType, Block previous) {
             mBlockType = blockType;
+            mPrevious = previous;
+            mVarCount = previous == null ? 0 : previous.mVarCount;
         }
 
         public BlockType getBlockType() {
             return mBlockType;
         }
 
+        /**
+         * The block this one stores its differences from, or null.
+         */
+        public Block getPrevious() {
+            return mPrevious;
+        }
+
         public void addVar(String varName, Str varValue) {
-            mValues.put(varName, varValue);
+            final boolean existed = getVar(varName) != null;
+            final Str prevValue = mPrevious == null ? null : mPrevious.getVar(varName);
+            if (prevValue != null && sameStr(prevValue, varValue)) {
+                mChanged.remove(varName);
+            } else {
+                mChanged.put(varName, varValue);
+            }
+            mRemoved.remove(varName);
+            if (!existed) {
+                mVarCount++;
+            }
+        }
+
+        public void removeVar(String varName) {
+            if (getVar(varName) == null) {
+                return;
+            }
+            mChanged.remove(varName);
+            if (mPrevious != null && mPrevious.getVar(varName) != null) {
+                mRemoved.add(varName);
+            }
+            mVarCount--;
+        }
+
+        /**
+         * Replace the variables in this block with 'vars'.
+         */
+        public void setVars(Map<String, Str> vars) {
+            mChanged.clear();
+            mRemoved.clear();
+            mVarCount = vars.size();
+            int kept = 0;
+            for (Map.Entry<String, Str> entry: vars.entrySet()) {
+                final String varName = entry.getKey();
+                final Str prevValue = mPrevious == null ? null : mPrevious.getVar(varName);
+                if (prevValue == null || !sameStr(prevValue, entry.getValue())) {
+                    mChanged.put(varName, entry.getValue());
+                }
+                if (prevValue != null) {
+                    kept++;
+                }
+            }
+            // Only look for removed variables if there are any.
+            if (mPrevious != null && kept != mPrevious.mVarCount) {
+                for (String varName: mPrevious.getVars().keySet()) {
+                    if (!vars.containsKey(varName)) {
+                        mRemoved.add(varName);
+                    }
+                }
+            }
         }
 
         public Str getVar(String varName) {
-            return mValues.get(varName);
+            for (Block block = this; block != null; block = block.mPrevious) {
+                final Str value = block.mChanged.get(varName);
+                if (value != null) {
+                    return value;
+                }
+                if (block.mRemoved.contains(varName)) {
+                    return null;
+                }
+            }
+            return null;
         }
 
+        /**
+         * Return all of the variables in this block. This is a new map each time, so
+         * use getChangedVars() and getRemovedVars() when only the differences from
+         * the previous block are needed.
+         */
         public TreeMap<String, Str> getVars() {
-            return mValues;
+            final ArrayList<Block> chain = new ArrayList();
+            for (Block block = this; block != null; block = block.mPrevious) {
+                chain.add(block);
+            }
+            final TreeMap<String, Str> result = new TreeMap();
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                final Block block = chain.get(i);
+                for (String varName: block.mRemoved) {
+                    result.remove(varName);
+                }
+                result.putAll(block.mChanged);
+            }
+            return result;
+        }
+
+        /**
+         * The variables that are new or different since getPrevious(), or all of them
+         * if there is no previous block. A variable whose value is the same string but
+         * from a different position counts as changed.
+         */
+        public Map<String, Str> getChangedVars() {
+            return Collections.unmodifiableMap(mChanged);
+        }
+
+        /**
+         * The variables in getPrevious() that aren't in this block.
+         */
+        public Set<String> getRemovedVars() {
+            return Collections.unmodifiableSet(mRemoved);
+        }
+
+        /**
+         * The number of variables in this block, including the unchanged ones.
+         */
+        public int getVarCount() {
+            return mVarCount;
         }
 
         public void setInheritedFile(Str filename) {
@@ -99,23 +250,28 @@ public class MakeConfig extends ConfigBase {
         public Str getInheritedFile() {
             return mInheritedFile;
         }
+
+        private static boolean sameStr(Str a, Str b) {
+            return a.equals(b) && Objects.equals(a.getPosition(), b.getPosition());
+        }
     }
 
     /**
      * Adds the given config file. Returns any one previously added, or null.
      */
     public ConfigFile addConfigFile(ConfigFile file) {
-        ConfigFile prev = null;
-        for (ConfigFile f: mConfigFiles) {
-            if (f.getFilename().equals(file.getFilename())) {
-                prev = f;
-                break;
-            }
-        }
+        final ConfigFile prev = mConfigFileIndex.putIfAbsent(file.getFilename(), file);
         mConfigFiles.add(file);
         return prev;
     }
 
+    /**
+     * Returns the first config file added with the given filename, or null.
+     */
+    public ConfigFile getConfigFile(String filename) {
+        return mConfigFileIndex.get(filename);
+    }
+
     public List<ConfigFile> getConfigFiles() {
         return mConfigFiles;
     }
@@ -144,12 +144,17 @@ public class MakeWriter {
 
             final Value value = entry.getValue();
             if (value.getVarType() == VarType.LIST) {
-                final List<Str> list = value.getList();
-                final int size = list.size();
-                for (int i = 0; i < size; i++) {
-                    out.print(list.get(i).toString());
-                    if (i != size - 1) {
-                        out.print(" \\\n        ");
+                final WordList words = value.getWordList();
+                if (words != null) {
+                    out.print(words.join(" \\\n        "));
+                } else {
+                    final List<Str> list = value.getList();
+                    final int size = list.size();
+                    for (int i = 0; i < size; i++) {
+                        out.print(list.get(i).toString());
+                        if (i != size - 1) {
+                            out.print(" \\\n        ");
+                        }
                     }
                 }
             } else {
@@ -17,21 +17,73 @@
 package com.android.build.config;
 
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 public class Options {
     public enum Action {
         DEFAULT,
+        BATCH,
+        SERVER,
+        CLIENT,
         HELP
     }
 
+    /**
+     * A product and variant to run in batch mode, as in PRODUCT-VARIANT for lunch.
+     */
+    public static class Target {
+        private final String mProduct;
+        private final String mVariant;
+
+        public Target(String product, String variant) {
+            mProduct = product;
+            mVariant = variant;
+        }
+
+        /**
+         * Parse PRODUCT-VARIANT, or return null if it isn't in that form. Variants never
+         * contain '-', so it's split at the last one.
+         */
+        public static Target parse(String str) {
+            final int dash = str.lastIndexOf('-');
+            if (dash <= 0 || dash == str.length() - 1) {
+                return null;
+            }
+            return new Target(str.substring(0, dash), str.substring(dash + 1));
+        }
+
+        public String getProduct() {
+            return mProduct;
+        }
+
+        public String getVariant() {
+            return mVariant;
+        }
+
+        @Override
+        public String toString() {
+            return mProduct + '-' + mVariant;
+        }
+    }
+
     private Action mAction = Action.DEFAULT;
 
     private String mProduct;
     private String mVariant;
     private String mOutDir;
     private String mCKatiBin;
+    private boolean mStreamDumpConfig;
+    private boolean mDumpConfigCache;
+    private boolean mParallelFlatten;
+    private boolean mParallelConvert;
+    private final ArrayList<Target> mBatchTargets = new ArrayList();
+    private int mJobs = Runtime.getRuntime().availableProcessors();
+    private String mProfileFile;
 
     public Action getAction() {
         return mAction;
@@ -53,19 +105,113 @@ public class Options {
         return mCKatiBin;
     }
 
+    /**
+     * Whether to parse the dumpconfig.mk output while kati is running.
+     */
+    public boolean getStreamDumpConfig() {
+        return mStreamDumpConfig;
+    }
+
+    /**
+     * Whether to reuse the last dumpconfig.mk results if the makefiles haven't changed.
+     */
+    public boolean getDumpConfigCache() {
+        return mDumpConfigCache;
+    }
+
+    /**
+     * Whether to run the independent passes of FlattenConfig in parallel.
+     */
+    public boolean getParallelFlatten() {
+        return mParallelFlatten;
+    }
+
+    /**
+     * Whether to convert each of the config files in parallel.
+     */
+    public boolean getParallelConvert() {
+        return mParallelConvert;
+    }
+
+    /**
+     * The products to run in batch mode.
+     */
+    public List<Target> getBatchTargets() {
+        return mBatchTargets;
+    }
+
+    /**
+     * How many products to run at once in batch mode.
+     */
+    public int getJobs() {
+        return mJobs;
+    }
+
+    /**
+     * Where to write timing and allocation information for each stage, or null to
+     * not record it.
+     */
+    public String getProfileFile() {
+        return mProfileFile;
+    }
+
+    /**
+     * The socket that the --server listens on and --client connects to.
+     */
+    public Path getSocketPath() {
+        return Paths.get(getOutDir(), "config", "product_config.sock");
+    }
+
+    /**
+     * Return a copy of these options for running a single target from a batch.
+     */
+    public Options forTarget(Target target) {
+        final Options result = new Options();
+        result.mProduct = target.getProduct();
+        result.mVariant = target.getVariant();
+        result.mOutDir = mOutDir;
+        result.mCKatiBin = mCKatiBin;
+        result.mStreamDumpConfig = mStreamDumpConfig;
+        result.mDumpConfigCache = mDumpConfigCache;
+        result.mParallelFlatten = mParallelFlatten;
+        result.mParallelConvert = mParallelConvert;
+        return result;
+    }
+
     public static void printHelp(PrintStream out) {
         out.println("usage: product_config");
         out.println();
         out.println("REQUIRED FLAGS");
-        out.println("  --ckati_bin CKATI        Kati binary to use.");
+        out.println("  --ckati_bin CKATI        Kati binary to use. Not needed with --client.");
         out.println();
         out.println("OPTIONAL FLAGS");
+        out.println("  --batch PRODUCT-VARIANT  Run product config for PRODUCT-VARIANT instead of");
+        out.println("                           TARGET_PRODUCT and TARGET_BUILD_VARIANT. Can be");
+        out.println("                           repeated to run several products at once.");
+        out.println("  --client                 Get the result from the server started with");
+        out.println("                           --server instead of running product config here.");
+        out.println("  --dumpconfig_cache       Reuse the product config from the previous run if");
+        out.println("                           none of the makefiles it read have changed.");
         out.println("  --hide ERROR_ID          Suppress this error.");
         out.println("  --error ERROR_ID         Make this ERROR_ID a fatal error.");
         out.println("  --help -h                This message.");
+        out.println("  --jobs N                 Run at most N products at once with --batch.");
+        out.println("                           Defaults to the number of CPUs.");
+        out.println("  --parallel_convert       Convert the dumpconfig output for each makefile");
+        out.println("                           in parallel.");
+        out.println("  --parallel_flatten       Run the independent passes of flattening the");
+        out.println("                           inherit graph in parallel.");
+        out.println("  --profile FILE           Write the time and memory used by each stage to");
+        out.println("                           FILE, as a Chrome trace. Not used with --server.");
+        out.println("  --server                 Keep running, and handle requests from --client");
+        out.println("                           on a socket in OUT_DIR. Implies");
+        out.println("                           --dumpconfig_cache.");
+        out.println("  --stream_dumpconfig      Parse kati's output through a FIFO while kati");
+        out.println("                           is still running, instead of from a file");
+        out.println("                           after it finishes.");
         out.println("  --warning ERROR_ID       Make this ERROR_ID a warning.");
         out.println();
-        out.println("REQUIRED ENVIRONMENT");
+        out.println("REQUIRED ENVIRONMENT (unless --batch or --server is used)");
         out.println("  TARGET_PRODUCT           Product to build from lunch command.");
         out.println("  TARGET_BUILD_VARIANT     Build variant from lunch command.");
         out.println();
@@ -112,8 +258,15 @@ public class Options {
                 while (mIndex < mArgs.length) {
                     final String arg = mArgs[mIndex];
 
-                    if ("--ckati_bin".equals(arg)) {
+                    if ("--batch".equals(arg)) {
+                        mResult.mBatchTargets.add(parseTarget(arg, requireNextStringArg(arg)));
+                        mResult.mAction = Action.BATCH;
+                    } else if ("--ckati_bin".equals(arg)) {
                         mResult.mCKatiBin = requireNextStringArg(arg);
+                    } else if ("--client".equals(arg)) {
+                        mResult.mAction = Action.CLIENT;
+                    } else if ("--dumpconfig_cache".equals(arg)) {
+                        mResult.mDumpConfigCache = true;
                     } else if ("--hide".equals(arg)) {
                         handleErrorCode(arg, Errors.Level.HIDDEN);
                     } else if ("--error".equals(arg)) {
@@ -125,6 +278,22 @@ public class Options {
                             mResult.mAction = Action.HELP;
                         }
                         return mResult;
+                    } else if ("--jobs".equals(arg)) {
+                        mResult.mJobs = requireNextNumberArg(arg);
+                        if (mResult.mJobs < 1) {
+                            throw new ParseException(arg + " must be at least 1.");
+                        }
+                    } else if ("--parallel_convert".equals(arg)) {
+                        mResult.mParallelConvert = true;
+                    } else if ("--parallel_flatten".equals(arg)) {
+                        mResult.mParallelFlatten = true;
+                    } else if ("--profile".equals(arg)) {
+                        mResult.mProfileFile = requireNextStringArg(arg);
+                    } else if ("--server".equals(arg)) {
+                        mResult.mAction = Action.SERVER;
+                        mResult.mDumpConfigCache = true;
+                    } else if ("--stream_dumpconfig".equals(arg)) {
+                        mResult.mStreamDumpConfig = true;
                     } else if ("--warning".equals(arg)) {
                         handleErrorCode(arg, Errors.Level.WARNING);
                     } else {
@@ -156,14 +325,17 @@ public class Options {
 
         private void validateArgs() {
             if (!mSkipRequiredArgValidation) {
-                if (mResult.mCKatiBin == null || "".equals(mResult.mCKatiBin)) {
+                if (mResult.mAction != Action.CLIENT
+                        && (mResult.mCKatiBin == null || "".equals(mResult.mCKatiBin))) {
                     addMissingArgError("--ckati_bin");
                 }
-                if (mResult.mProduct == null) {
-                    addMissingEnvError("TARGET_PRODUCT");
-                }
-                if (mResult.mVariant == null) {
-                    addMissingEnvError("TARGET_BUILD_VARIANT");
+                if (mResult.mAction != Action.BATCH && mResult.mAction != Action.SERVER) {
+                    if (mResult.mProduct == null) {
+                        addMissingEnvError("TARGET_PRODUCT");
+                    }
+                    if (mResult.mVariant == null) {
+                        addMissingEnvError("TARGET_BUILD_VARIANT");
+                    }
                 }
             }
         }
@@ -209,6 +381,14 @@ public class Options {
             }
         }
 
+        private Target parseTarget(String arg, String val) throws ParseException {
+            final Target target = Target.parse(val);
+            if (target == null) {
+                throw new ParseException(arg + " requires PRODUCT-VARIANT. found: " + val);
+            }
+            return target;
+        }
+
         private void handleErrorCode(String arg, Errors.Level level) throws ParseException {
             final int code = requireNextNumberArg(arg);
             final Errors.Category category = mErrors.getCategories().get(code);
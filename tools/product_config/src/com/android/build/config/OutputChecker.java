@@ -106,8 +106,9 @@ public class OutputChecker {
             if (IGNORED_VARIABLES.matches(var.name)) {
                 continue;
             }
-            errors.WARNING_DIFFERENT_FROM_KATI.add("product_config processing differs from"
-                    + " kati processing for " + var.type + " variable " + var.name + ".\n"
+            // The values can be long, so only format them if the warning is printed.
+            errors.WARNING_DIFFERENT_FROM_KATI.add(() -> "product_config processing differs"
+                    + " from kati processing for " + var.type + " variable " + var.name + ".\n"
                     + "original: "
                     + Value.oneLinePerWord(var.original, "<null>") + "\n"
                     + "updated: "
@@ -16,11 +16,14 @@
 
 package com.android.build.config;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
 
 /**
  * Position in a source file.
+ * <p>
+ * Positions are immutable, so the same one can be shared by everything that came from
+ * the same place. Use NO_POSITION instead of allocating an empty one, and PositionPool
+ * to share the rest.
  */
 public class Position implements Comparable<Position> {
     /**
@@ -28,9 +31,13 @@ public class Position implements Comparable<Position> {
      */
     public static final int NO_LINE = -1;
 
-    private static final Pattern REGEX = Pattern.compile("([^:]*)(?::(\\d)*)?:?\\s*");
     public static final String UNKNOWN = "<unknown>";
 
+    /**
+     * The Position with no file and no line.
+     */
+    public static final Position NO_POSITION = new Position();
+
     private final String mFile;
     private final int mLine;
 
@@ -61,6 +68,26 @@ public class Position implements Comparable<Position> {
         return mLine - that.mLine;
     }
 
+    /**
+     * Positions are equal if they have the same file and line.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Position)) {
+            return false;
+        }
+        final Position that = (Position)o;
+        return mLine == that.mLine && Objects.equals(mFile, that.mFile);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(mFile) + mLine;
+    }
+
     public String getFile() {
         return mFile;
     }
@@ -72,30 +99,68 @@ public class Position implements Comparable<Position> {
     /**
      * Return a Position object from a string containing <filename>:<line>, or the default
      * Position(null, NO_LINE) if the string can't be parsed.
+     * <p>
+     * The string is "<filename>[:[<line>][:]]" followed by optional whitespace. This is
+     * called for every value in the dumpconfig output, so it is scanned by hand rather
+     * than with a regex.
      */
     public static Position parse(String str) {
-        final Matcher m = REGEX.matcher(str);
-        if (!m.matches()) {
-            return new Position();
+        final int len = str.length();
+        int fileEnd = str.indexOf(':');
+        int line = NO_LINE;
+        int i;
+        if (fileEnd < 0) {
+            fileEnd = len;
+            i = len;
+        } else {
+            i = fileEnd + 1;
+            final int lineStart = i;
+            while (i < len && isDigit(str.charAt(i))) {
+                i++;
+            }
+            if (i > lineStart) {
+                line = parseLine(str, lineStart, i);
+            }
+            if (i < len && str.charAt(i) == ':') {
+                i++;
+            }
+        }
+        while (i < len && WhitespaceTokenizer.isSpace(str.charAt(i))) {
+            i++;
+        }
+        if (i != len) {
+            return NO_POSITION;
         }
-        String filename = m.group(1);
+
+        String filename = str.substring(0, fileEnd);
         if (filename.length() == 0 || UNKNOWN.equals(filename)) {
             filename = null;
         }
-        String lineString = m.group(2);
-        int line;
-        if (lineString == null || lineString.length() == 0) {
-            line = NO_LINE;
-        } else {
-            try {
-                line = Integer.parseInt(lineString);
-            } catch (NumberFormatException ex) {
-                line = NO_LINE;
-            }
+        if (filename == null && line == NO_LINE) {
+            return NO_POSITION;
         }
         return new Position(filename, line);
     }
 
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Parse the digits in str from start to end, or return NO_LINE if they don't fit in
+     * an int.
+     */
+    private static int parseLine(String str, int start, int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            result = (result * 10) + (str.charAt(i) - '0');
+            if (result > Integer.MAX_VALUE) {
+                return NO_LINE;
+            }
+        }
+        return (int)result;
+    }
+
     @Override
     public String toString() {
       if (mFile == null && mLine == NO_LINE) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.util.HashMap;
+
+/**
+ * A set of canonical Positions, so that everything from the same file and line
+ * shares one Position, and every Position for the same file shares one String.
+ * <p>
+ * A product config has millions of values, but only as many distinct positions as
+ * there are assignments in the makefiles.
+ * <p>
+ * Not thread safe.
+ */
+public class PositionPool {
+    private final StringPool mFiles = new StringPool();
+    private final HashMap<Position, Position> mPositions = new HashMap();
+    private final HashMap<String, Position> mParsed = new HashMap();
+
+    /**
+     * Return the canonical Position for 'file' and 'line'.
+     */
+    public Position get(String file, int line) {
+        return intern(new Position(file, line));
+    }
+
+    /**
+     * Return the canonical Position equal to 'pos', adding it if there isn't one yet.
+     */
+    public Position intern(Position pos) {
+        if (pos.getFile() == null && pos.getLine() == Position.NO_LINE) {
+            return Position.NO_POSITION;
+        }
+        final Position existing = mPositions.get(pos);
+        if (existing != null) {
+            return existing;
+        }
+        // The key is what's shared, so make sure its file name is too.
+        Position result = pos;
+        final String file = pos.getFile();
+        if (file != null) {
+            final String canonical = mFiles.intern(file);
+            if (canonical != file) {
+                result = new Position(canonical, pos.getLine());
+            }
+        }
+        mPositions.put(result, result);
+        return result;
+    }
+
+    /**
+     * Return the canonical Position for Position.parse(str).
+     * <p>
+     * The same few location strings come up over and over, so each one is only parsed
+     * once.
+     */
+    public Position parse(String str) {
+        Position result = mParsed.get(str);
+        if (result == null) {
+            result = intern(Position.parse(str));
+            mParsed.put(str, result);
+        }
+        return result;
+    }
+
+    /**
+     * Number of distinct Positions in the pool, not counting NO_POSITION.
+     */
+    public int size() {
+        return mPositions.size();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records how long each stage of product config takes, how much CPU time it uses
+ * and how much it allocates, along with counters for the size of the input.
+ * <p>
+ * The result is written as a Chrome trace file, which can be loaded in
+ * chrome://tracing or Perfetto. The same file is plain JSON, and also has a
+ * summary of each stage and the counters in "otherData", for scripts that
+ * track them over time.
+ * <p>
+ * Stages may be run on any thread. CPU time and allocations are for the thread
+ * that the stage ran on, so work it hands to other threads is not included.
+ */
+public class Profiler {
+    /**
+     * A Profiler that doesn't record anything.
+     */
+    public static final Profiler DISABLED = new Profiler(false);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean mEnabled;
+    private final long mStartNanos = System.nanoTime();
+    private final ArrayList<Phase> mPhases = new ArrayList();
+    private final TreeMap<String, Long> mCounters = new TreeMap();
+
+    /**
+     * A stage of the work. Close it when the stage is done.
+     */
+    public static class Phase implements AutoCloseable {
+        private final Profiler mProfiler;
+        private final String mName;
+        private final long mThreadId;
+        private final String mThreadName;
+        private final long mStartNanos;
+        private final long mStartCpuNanos;
+        private final long mStartAllocated;
+        private long mEndNanos;
+        private long mEndCpuNanos;
+        private long mEndAllocated;
+
+        private Phase(Profiler profiler, String name) {
+            mProfiler = profiler;
+            mName = name;
+            final Thread thread = Thread.currentThread();
+            mThreadId = thread.getId();
+            mThreadName = thread.getName();
+            mStartAllocated = readAllocatedBytes();
+            mStartCpuNanos = readCpuNanos();
+            mStartNanos = System.nanoTime();
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getWallNanos() {
+            return mEndNanos - mStartNanos;
+        }
+
+        /**
+         * CPU time used by the thread, or -1 if the JVM can't measure it.
+         */
+        public long getCpuNanos() {
+            return mStartCpuNanos < 0 ? -1 : mEndCpuNanos - mStartCpuNanos;
+        }
+
+        /**
+         * Bytes allocated by the thread, or -1 if the JVM can't measure it.
+         */
+        public long getAllocatedBytes() {
+            return mStartAllocated < 0 ? -1 : mEndAllocated - mStartAllocated;
+        }
+
+        @Override
+        public void close() {
+            if (mProfiler == null) {
+                return;
+            }
+            mEndNanos = System.nanoTime();
+            mEndCpuNanos = readCpuNanos();
+            mEndAllocated = readAllocatedBytes();
+            mProfiler.addPhase(this);
+        }
+    }
+
+    /**
+     * Returned by start() when not enabled, so there's nothing to allocate.
+     */
+    private static final Phase NO_PHASE = new Phase(null, null);
+
+    public Profiler() {
+        this(true);
+    }
+
+    private Profiler(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Start timing a stage on the current thread. Use it in a try-with-resources
+     * block so that it is closed on the same thread.
+     */
+    public Phase start(String name) {
+        if (!mEnabled) {
+            return NO_PHASE;
+        }
+        return new Phase(this, name);
+    }
+
+    /**
+     * Add 'amount' to the counter 'name'. If several products are run by the same
+     * Profiler, their counts are added together.
+     */
+    public void count(String name, long amount) {
+        if (!mEnabled) {
+            return;
+        }
+        synchronized (mCounters) {
+            mCounters.merge(name, amount, Long::sum);
+        }
+    }
+
+    /**
+     * Return the finished stages, in the order they finished.
+     */
+    public List<Phase> getPhases() {
+        synchronized (mPhases) {
+            return new ArrayList(mPhases);
+        }
+    }
+
+    public Map<String, Long> getCounters() {
+        synchronized (mCounters) {
+            return new TreeMap(mCounters);
+        }
+    }
+
+    private void addPhase(Phase phase) {
+        synchronized (mPhases) {
+            mPhases.add(phase);
+        }
+    }
+
+    /**
+     * Write everything recorded so far to 'file'.
+     */
+    public void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            write(out);
+            if (out.checkError()) {
+                throw new IOException("Error writing " + file);
+            }
+        }
+    }
+
+    /**
+     * Write everything recorded so far as a Chrome trace in the JSON object format.
+     */
+    public void write(PrintWriter out) {
+        final List<Phase> phases = getPhases();
+        final Map<String, Long> counters = getCounters();
+
+        out.println("{");
+        out.println("  \"displayTimeUnit\": \"ms\",");
+        out.println("  \"traceEvents\": [");
+        final TreeMap<Long, String> threads = new TreeMap();
+        String separator = "";
+        for (Phase phase: phases) {
+            threads.put(phase.mThreadId, phase.mThreadName);
+            out.print(separator);
+            separator = ",\n";
+            out.print("    {\"name\": " + quote(phase.mName)
+                    + ", \"ph\": \"X\", \"pid\": 1, \"tid\": " + phase.mThreadId
+                    + ", \"ts\": " + micros(phase.mStartNanos - mStartNanos)
+                    + ", \"dur\": " + micros(phase.getWallNanos())
+                    + ", \"args\": {\"cpu_ms\": " + millis(phase.getCpuNanos())
+                    + ", \"allocated_bytes\": " + phase.getAllocatedBytes() + "}}");
+        }
+        for (Map.Entry<Long, String> thread: threads.entrySet()) {
+            out.print(separator);
+            separator = ",\n";
+            out.print("    {\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": "
+                    + thread.getKey() + ", \"args\": {\"name\": " + quote(thread.getValue())
+                    + "}}");
+        }
+        out.println();
+        out.println("  ],");
+
+        // The same numbers again, added up by stage, so they're easy to compare.
+        final TreeMap<String, long[]> totals = new TreeMap();
+        for (Phase phase: phases) {
+            long[] total = totals.get(phase.mName);
+            if (total == null) {
+                total = new long[4];
+                totals.put(phase.mName, total);
+            }
+            total[0]++;
+            total[1] += phase.getWallNanos();
+            total[2] += Math.max(0, phase.getCpuNanos());
+            total[3] += Math.max(0, phase.getAllocatedBytes());
+        }
+        out.println("  \"otherData\": {");
+        out.println("    \"phases\": {");
+        separator = "";
+        for (Map.Entry<String, long[]> entry: totals.entrySet()) {
+            final long[] total = entry.getValue();
+            out.print(separator);
+            separator = ",\n";
+            out.print("      " + quote(entry.getKey()) + ": {\"count\": " + total[0]
+                    + ", \"wall_ms\": " + millis(total[1])
+                    + ", \"cpu_ms\": " + millis(total[2])
+                    + ", \"allocated_bytes\": " + total[3] + "}");
+        }
+        out.println();
+        out.println("    },");
+        out.println("    \"counters\": {");
+        separator = "";
+        for (Map.Entry<String, Long> entry: counters.entrySet()) {
+            out.print(separator);
+            separator = ",\n";
+            out.print("      " + quote(entry.getKey()) + ": " + entry.getValue());
+        }
+        out.println();
+        out.println("    }");
+        out.println("  }");
+        out.println("}");
+    }
+
+    private static long readCpuNanos() {
+        if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    private static long readAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean)THREADS;
+        if (!threads.isThreadAllocatedMemorySupported()
+                || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    private static String millis(long nanos) {
+        if (nanos < 0) {
+            return "-1";
+        }
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    // VisibleForTesting
+    static String quote(String s) {
+        final StringBuilder result = new StringBuilder(s.length() + 2);
+        result.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\');
+                result.append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int)c));
+            } else {
+                result.append(c);
+            }
+        }
+        result.append('"');
+        return result.toString();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Keeps the product config tool running between builds, so that the JVM stays warm,
+ * and results can be reused when nothing has changed.
+ * <p>
+ * The server listens on a Unix domain socket in OUT_DIR. A client sends one line with
+ * PRODUCT-VARIANT, and gets back the errors that running product config for that
+ * target would print, followed by a line with "exit" and the exit code.
+ * <p>
+ * The errors from the last run of each target are kept. If that run's dumpconfig
+ * cache hasn't been replaced since, and none of the makefiles it lists have changed,
+ * they are sent back without running anything. Otherwise the target is run again,
+ * which still skips kati if the cache is usable, and only re-flattens the variables
+ * that changed.
+ */
+public class Server {
+    private static final String EXIT_PREFIX = "exit ";
+
+    private final Errors mErrors;
+    private final Options mOptions;
+    private final Main mMain;
+
+    /**
+     * The last result for each target, keyed by PRODUCT-VARIANT.
+     */
+    private final HashMap<String, Result> mResults = new HashMap();
+
+    private static class Result {
+        final Main mMain;
+        final Errors mErrors;
+        final long mCacheModified;
+        final long mCacheLength;
+
+        Result(Main main, File cacheFile) {
+            mMain = main;
+            mErrors = main.getErrors();
+            // Both are 0 if the file doesn't exist.
+            mCacheModified = cacheFile.lastModified();
+            mCacheLength = cacheFile.length();
+        }
+    }
+
+    public Server(Errors errors, Options options) {
+        mErrors = errors;
+        mOptions = options;
+        mMain = new Main(errors, options);
+    }
+
+    /**
+     * Handle requests one at a time, until the process is killed.
+     */
+    public void run() {
+        final Path socketPath = mOptions.getSocketPath();
+        try {
+            Files.createDirectories(socketPath.getParent());
+            // Left behind if the last server was killed.
+            Files.deleteIfExists(socketPath);
+        } catch (IOException ex) {
+            mErrors.ERROR_SERVER.add("Unable to create " + socketPath + ": " + ex.getMessage());
+            return;
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            System.err.println("Listening on " + socketPath);
+            while (true) {
+                try (SocketChannel channel = server.accept()) {
+                    handleRequest(channel);
+                } catch (IOException ex) {
+                    // Most likely the client went away. Keep going for the next one.
+                    System.err.println("Error handling request: " + ex.getMessage());
+                }
+            }
+        } catch (IOException ex) {
+            mErrors.ERROR_SERVER.add("Unable to listen on " + socketPath + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    private void handleRequest(SocketChannel channel) throws IOException {
+        final BufferedReader in = new BufferedReader(
+                Channels.newReader(channel, StandardCharsets.UTF_8));
+        final PrintStream out = new PrintStream(Channels.newOutputStream(channel), false,
+                StandardCharsets.UTF_8);
+
+        final String request = in.readLine();
+        if (request == null) {
+            return;
+        }
+        final Options.Target target = Options.Target.parse(request.trim());
+        if (target == null) {
+            out.println("Bad request, expected PRODUCT-VARIANT: " + request);
+            out.println(EXIT_PREFIX + 1);
+            out.flush();
+            return;
+        }
+
+        try {
+            final Result result = getResult(target);
+            result.mErrors.printErrors(out);
+            out.println(EXIT_PREFIX + (result.mErrors.hadError() ? 1 : 0));
+        } catch (RuntimeException ex) {
+            // A programming error in this tool, as in Main.main(). Don't keep the result.
+            ex.printStackTrace(out);
+            out.println(EXIT_PREFIX + 1);
+        }
+        out.flush();
+    }
+
+    /**
+     * Return the previous result for 'target' if it's still valid, otherwise run it again.
+     */
+    private Result getResult(Options.Target target) {
+        final KatiImpl kati = new KatiImpl(mErrors, mOptions.forTarget(target));
+        final File cacheFile = kati.getDumpConfigCacheFile();
+
+        Result result = mResults.get(target.toString());
+        if (result != null
+                && result.mCacheModified != 0
+                && result.mCacheModified == cacheFile.lastModified()
+                && result.mCacheLength == cacheFile.length()
+                && kati.isDumpConfigCacheUpToDate()) {
+            return result;
+        }
+
+        // Even if kati has to run again, only what changed needs to be re-flattened.
+        result = new Result(mMain.runTarget(target, result != null ? result.mMain : null),
+                cacheFile);
+        mResults.put(target.toString(), result);
+        return result;
+    }
+
+    /**
+     * Send the target from 'options' to the server and print its reply. Returns the
+     * exit code for the command.
+     */
+    public static int runClient(Errors errors, Options options) {
+        final Path socketPath = options.getSocketPath();
+        final String target = options.getProduct() + '-' + options.getVariant();
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            final PrintStream out = new PrintStream(Channels.newOutputStream(channel), false,
+                    StandardCharsets.UTF_8);
+            out.println(target);
+            out.flush();
+
+            final BufferedReader in = new BufferedReader(
+                    Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(EXIT_PREFIX)) {
+                    try {
+                        return Integer.parseInt(line.substring(EXIT_PREFIX.length()));
+                    } catch (NumberFormatException ex) {
+                        break;
+                    }
+                }
+                System.err.println(line);
+            }
+            errors.ERROR_SERVER.add("Server at " + socketPath
+                    + " stopped without finishing " + target);
+        } catch (IOException ex) {
+            errors.ERROR_SERVER.add("Unable to connect to " + socketPath + ": " + ex.getMessage()
+                    + "\nStart a server with --server.");
+        }
+        return 1;
+    }
+}
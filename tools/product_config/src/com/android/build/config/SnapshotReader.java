@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads configs written by SnapshotWriter.
+ * <p>
+ * The read methods must be called in the same order as the write methods were.
+ */
+public class SnapshotReader {
+    /**
+     * "PCS" followed by a zero byte.
+     */
+    static final int MAGIC = 0x50435300;
+
+    /**
+     * Change this whenever the format changes. Files with another version are
+     * rejected instead of being misread.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * What a file written by SnapshotWriter.write(File, ...) contains.
+     */
+    static final int CONTENTS_GENERIC_CONFIG = 1;
+    static final int CONTENTS_FLAT_CONFIG = 2;
+
+    /**
+     * Tags for the GenericConfig.Statement subclasses.
+     */
+    static final int STATEMENT_ASSIGN = 0;
+    static final int STATEMENT_INHERIT = 1;
+
+    /**
+     * Thrown when the input is not a valid snapshot.
+     */
+    public static class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final String[] mStrings;
+    private final PositionPool mPositions = new PositionPool();
+
+    /**
+     * Read the header and string table from 'buffer'. The buffer is left positioned
+     * at the start of the body.
+     */
+    public SnapshotReader(ByteBuffer buffer) throws FormatException {
+        mBuffer = buffer;
+        try {
+            if (mBuffer.getInt() != MAGIC) {
+                throw new FormatException("Not a product config snapshot");
+            }
+            final int version = readVarint();
+            if (version != VERSION) {
+                throw new FormatException("Unsupported snapshot version " + version
+                        + ", expected " + VERSION);
+            }
+            final int count = readCount();
+            // Index 0 is null.
+            mStrings = new String[count + 1];
+            for (int i = 1; i <= count; i++) {
+                mStrings[i] = readUtf8(readVarint());
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new FormatException("Truncated snapshot");
+        }
+    }
+
+    /**
+     * Map 'file' and read its header and string table.
+     */
+    public static SnapshotReader open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new FormatException("Snapshot too large: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            return new SnapshotReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Return whether the whole body has been read.
+     */
+    public boolean isAtEnd() {
+        return !mBuffer.hasRemaining();
+    }
+
+    /**
+     * Read a varint written by SnapshotWriter.writeVarint. Those are never negative, so
+     * anything that would be, or that doesn't fit in an int, is an error.
+     */
+    public int readVarint() throws FormatException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = readByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                // The fifth byte only has room for three more bits, or it would be negative.
+                if (shift == 28 && (b & 0x78) != 0) {
+                    break;
+                }
+                return result;
+            }
+        }
+        throw new FormatException("Bad varint at offset " + mBuffer.position());
+    }
+
+    /**
+     * Read the number of items that follow. Each item takes at least one byte, so a
+     * count larger than what's left is an error, rather than something to allocate.
+     */
+    private int readCount() throws FormatException {
+        final int count = readVarint();
+        checkRemaining(count);
+        return count;
+    }
+
+    public boolean readBoolean() throws FormatException {
+        return readByte() != 0;
+    }
+
+    public byte[] readBytes() throws FormatException {
+        final int length = readVarint();
+        checkRemaining(length);
+        final byte[] result = new byte[length];
+        mBuffer.get(result);
+        return result;
+    }
+
+    public String readString() throws FormatException {
+        final int id = readVarint();
+        if (id < 0 || id >= mStrings.length) {
+            throw new FormatException("Bad string index " + id + " at offset "
+                    + mBuffer.position());
+        }
+        return mStrings[id];
+    }
+
+    public List<String> readStringList() throws FormatException {
+        final int count = readCount();
+        final ArrayList<String> result = new ArrayList(count);
+        for (int i = 0; i < count; i++) {
+            result.add(readString());
+        }
+        return result;
+    }
+
+    public Position readPosition() throws FormatException {
+        final String file = readString();
+        final int line = readVarint() - 1;
+        return mPositions.get(file, line);
+    }
+
+    public Str readStr() throws FormatException {
+        final String value = readString();
+        if (value == null) {
+            return null;
+        }
+        return new Str(readPosition(), value);
+    }
+
+    /**
+     * Read a map written by SnapshotWriter.writeStrMap into 'map'.
+     */
+    public void readStrMap(Map<String, Str> map) throws FormatException {
+        final int count = readVarint();
+        for (int i = 0; i < count; i++) {
+            final String key = readString();
+            map.put(key, readStr());
+        }
+    }
+
+    public void readConfigBase(ConfigBase config) throws FormatException {
+        config.setPhase(readString());
+        config.setRootNodes(readStringList());
+        final int count = readVarint();
+        final VarType[] types = VarType.values();
+        for (int i = 0; i < count; i++) {
+            final String name = readString();
+            config.addProductVar(name, readEnum(types));
+        }
+        readStrMap(config.getInitialVariables());
+        readStrMap(config.getFinalVariables());
+    }
+
+    public MakeConfig readMakeConfig() throws FormatException {
+        final MakeConfig config = new MakeConfig();
+        readConfigBase(config);
+        final int fileCount = readVarint();
+        final MakeConfig.BlockType[] blockTypes = MakeConfig.BlockType.values();
+        for (int i = 0; i < fileCount; i++) {
+            final MakeConfig.ConfigFile file = new MakeConfig.ConfigFile(readString());
+            final int blockCount = readVarint();
+            MakeConfig.Block previous = null;
+            for (int j = 0; j < blockCount; j++) {
+                // Blocks are written out in full, but stored relative to the one before.
+                final MakeConfig.Block block = new MakeConfig.Block(readEnum(blockTypes),
+                        previous);
+                block.setInheritedFile(readStr());
+                final HashMap<String, Str> vars = new HashMap();
+                readStrMap(vars);
+                block.setVars(vars);
+                file.addBlock(block);
+                previous = block;
+            }
+            config.addConfigFile(file);
+        }
+        return config;
+    }
+
+    public Map<String, MakeConfig> readMakeConfigs() throws FormatException {
+        final int count = readVarint();
+        final HashMap<String, MakeConfig> result = new HashMap();
+        for (int i = 0; i < count; i++) {
+            final String key = readString();
+            result.put(key, readMakeConfig());
+        }
+        return result;
+    }
+
+    public List<Str> readStrList() throws FormatException {
+        final int count = readCount();
+        final ArrayList<Str> result = new ArrayList(count);
+        for (int i = 0; i < count; i++) {
+            result.add(readStr());
+        }
+        return result;
+    }
+
+    public GenericConfig readGenericConfig() throws FormatException {
+        final GenericConfig config = new GenericConfig();
+        readConfigBase(config);
+        final int fileCount = readVarint();
+        for (int i = 0; i < fileCount; i++) {
+            final GenericConfig.ConfigFile file = new GenericConfig.ConfigFile(readString());
+            final int statementCount = readVarint();
+            for (int j = 0; j < statementCount; j++) {
+                final int tag = readVarint();
+                if (tag == STATEMENT_ASSIGN) {
+                    final String name = readString();
+                    file.addStatement(new GenericConfig.Assign(name, readStrList()));
+                } else if (tag == STATEMENT_INHERIT) {
+                    file.addStatement(new GenericConfig.Inherit(readStr()));
+                } else {
+                    throw new FormatException("Bad statement type " + tag + " at offset "
+                            + mBuffer.position());
+                }
+            }
+            config.addConfigFile(file);
+        }
+        return config;
+    }
+
+    public Value readValue() throws FormatException {
+        final VarType varType = readEnum(VarType.values());
+        if (readBoolean()) {
+            final List<Str> list = readStrList();
+            if (varType != VarType.LIST) {
+                throw new FormatException("List value with type " + varType);
+            }
+            return new Value(list);
+        } else {
+            return new Value(varType, readStr());
+        }
+    }
+
+    public FlatConfig readFlatConfig() throws FormatException {
+        final FlatConfig config = new FlatConfig();
+        readConfigBase(config);
+        final int count = readVarint();
+        for (int i = 0; i < count; i++) {
+            final String name = readString();
+            config.getValues().put(name, readValue());
+        }
+        return config;
+    }
+
+    /**
+     * Read a file written by SnapshotWriter.write(File, GenericConfig).
+     */
+    public static GenericConfig readGenericConfig(File file) throws IOException {
+        final SnapshotReader reader = open(file);
+        reader.checkContents(CONTENTS_GENERIC_CONFIG);
+        final GenericConfig result = reader.readGenericConfig();
+        reader.checkAtEnd();
+        return result;
+    }
+
+    /**
+     * Read a file written by SnapshotWriter.write(File, FlatConfig).
+     */
+    public static FlatConfig readFlatConfig(File file) throws IOException {
+        final SnapshotReader reader = open(file);
+        reader.checkContents(CONTENTS_FLAT_CONFIG);
+        final FlatConfig result = reader.readFlatConfig();
+        reader.checkAtEnd();
+        return result;
+    }
+
+    private void checkContents(int expected) throws FormatException {
+        final int contents = readVarint();
+        if (contents != expected) {
+            throw new FormatException("Snapshot contains type " + contents + ", expected "
+                    + expected);
+        }
+    }
+
+    private void checkAtEnd() throws FormatException {
+        if (!isAtEnd()) {
+            throw new FormatException("Extra data at offset " + mBuffer.position());
+        }
+    }
+
+    private <T> T readEnum(T[] values) throws FormatException {
+        final int ordinal = readVarint();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new FormatException("Bad enum value " + ordinal + " at offset "
+                    + mBuffer.position());
+        }
+        return values[ordinal];
+    }
+
+    private int readByte() throws FormatException {
+        if (!mBuffer.hasRemaining()) {
+            throw new FormatException("Truncated snapshot");
+        }
+        return mBuffer.get();
+    }
+
+    private String readUtf8(int length) throws FormatException {
+        checkRemaining(length);
+        final String result;
+        if (mBuffer.hasArray()) {
+            final int offset = mBuffer.arrayOffset() + mBuffer.position();
+            result = new String(mBuffer.array(), offset, length, StandardCharsets.UTF_8);
+            mBuffer.position(mBuffer.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            mBuffer.get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    private void checkRemaining(int length) throws FormatException {
+        if (length < 0 || length > mBuffer.remaining()) {
+            throw new FormatException("Truncated snapshot");
+        }
+    }
+}
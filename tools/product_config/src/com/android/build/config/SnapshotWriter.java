@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes configs in a compact binary form that SnapshotReader can load back.
+ * <p>
+ * The file is a header, a table of every distinct string, and then the body. In the
+ * body, strings are written as varint indices into the table, so each one is only
+ * stored once no matter how many times it's used.
+ * <pre>
+ *   int32    SnapshotReader.MAGIC
+ *   varint   SnapshotReader.VERSION
+ *   varint   number of strings
+ *   repeated varint length, UTF-8 bytes
+ *   ...      body
+ * </pre>
+ */
+public class SnapshotWriter {
+    private final HashMap<String, Integer> mStringIds = new HashMap();
+    private final ArrayList<String> mStrings = new ArrayList();
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+
+    /**
+     * Write a non-negative int in 7 bit groups, low bits first.
+     */
+    public void writeVarint(int value) {
+        writeVarint(mBody, value);
+    }
+
+    private static void writeVarint(OutputStream out, int value) {
+        try {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        } catch (IOException ex) {
+            // ByteArrayOutputStream doesn't throw, and the file output is buffered
+            // through one.
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public void writeBoolean(boolean value) {
+        mBody.write(value ? 1 : 0);
+    }
+
+    public void writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        mBody.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write a string, which may be null, as a reference into the string table.
+     */
+    public void writeString(String s) {
+        if (s == null) {
+            writeVarint(0);
+            return;
+        }
+        Integer id = mStringIds.get(s);
+        if (id == null) {
+            mStrings.add(s);
+            id = mStrings.size();
+            mStringIds.put(s, id);
+        }
+        writeVarint(id);
+    }
+
+    public void writeStringList(List<String> list) {
+        writeVarint(list.size());
+        for (String s: list) {
+            writeString(s);
+        }
+    }
+
+    public void writePosition(Position pos) {
+        if (pos == null) {
+            pos = Position.NO_POSITION;
+        }
+        writeString(pos.getFile());
+        // NO_LINE is -1, so shift everything up by one to keep it non-negative.
+        writeVarint(pos.getLine() + 1);
+    }
+
+    /**
+     * Write a Str, which may be null, including its Position.
+     */
+    public void writeStr(Str str) {
+        if (str == null) {
+            writeVarint(0);
+            return;
+        }
+        writeString(str.toString());
+        writePosition(str.getPosition());
+    }
+
+    public void writeStrMap(Map<String, Str> map) {
+        // Sorted, so the same config always makes the same bytes.
+        final TreeMap<String, Str> sorted = new TreeMap(map);
+        writeVarint(sorted.size());
+        for (Map.Entry<String, Str> entry: sorted.entrySet()) {
+            writeString(entry.getKey());
+            writeStr(entry.getValue());
+        }
+    }
+
+    /**
+     * Write the fields that all configs share.
+     */
+    public void writeConfigBase(ConfigBase config) {
+        writeString(config.getPhase());
+        writeStringList(config.getRootNodes());
+        writeVarint(config.getProductVars().size());
+        for (Map.Entry<String, VarType> entry: config.getProductVars().entrySet()) {
+            writeString(entry.getKey());
+            writeVarint(entry.getValue().ordinal());
+        }
+        writeStrMap(config.getInitialVariables());
+        writeStrMap(config.getFinalVariables());
+    }
+
+    public void writeMakeConfig(MakeConfig config) {
+        writeConfigBase(config);
+        writeVarint(config.getConfigFiles().size());
+        for (MakeConfig.ConfigFile file: config.getConfigFiles()) {
+            writeString(file.getFilename());
+            writeVarint(file.getBlocks().size());
+            for (MakeConfig.Block block: file.getBlocks()) {
+                writeVarint(block.getBlockType().ordinal());
+                writeStr(block.getInheritedFile());
+                writeStrMap(block.getVars());
+            }
+        }
+    }
+
+    /**
+     * Write the phase name to MakeConfig map that comes out of DumpConfigParser.
+     */
+    public void writeMakeConfigs(Map<String, MakeConfig> configs) {
+        final TreeMap<String, MakeConfig> sorted = new TreeMap(configs);
+        writeVarint(sorted.size());
+        for (Map.Entry<String, MakeConfig> entry: sorted.entrySet()) {
+            writeString(entry.getKey());
+            writeMakeConfig(entry.getValue());
+        }
+    }
+
+    public void writeStrList(List<Str> list) {
+        writeVarint(list.size());
+        for (Str str: list) {
+            writeStr(str);
+        }
+    }
+
+    public void writeGenericConfig(GenericConfig config) {
+        writeConfigBase(config);
+        writeVarint(config.getFiles().size());
+        for (GenericConfig.ConfigFile file: config.getFiles().values()) {
+            writeString(file.getFilename());
+            writeVarint(file.getStatements().size());
+            for (GenericConfig.Statement statement: file.getStatements()) {
+                if (statement instanceof GenericConfig.Assign) {
+                    final GenericConfig.Assign assign = (GenericConfig.Assign)statement;
+                    writeVarint(SnapshotReader.STATEMENT_ASSIGN);
+                    writeString(assign.getName());
+                    writeStrList(assign.getValue());
+                } else if (statement instanceof GenericConfig.Inherit) {
+                    final GenericConfig.Inherit inherit = (GenericConfig.Inherit)statement;
+                    writeVarint(SnapshotReader.STATEMENT_INHERIT);
+                    writeStr(inherit.getFilename());
+                } else {
+                    throw new RuntimeException("Unsupported statement type: "
+                            + statement.getClass().getName());
+                }
+            }
+        }
+    }
+
+    public void writeValue(Value value) {
+        writeVarint(value.getVarType().ordinal());
+        final List<Str> list = value.getList();
+        writeBoolean(list != null);
+        if (list != null) {
+            writeStrList(list);
+        } else {
+            writeStr(value.getStr());
+        }
+    }
+
+    public void writeFlatConfig(FlatConfig config) {
+        writeConfigBase(config);
+        writeVarint(config.getValues().size());
+        for (Map.Entry<String, Value> entry: config.getValues().entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getValue());
+        }
+    }
+
+    /**
+     * Write 'config' to 'file' on its own. Read it back with
+     * SnapshotReader.readGenericConfig.
+     */
+    public static void write(File file, GenericConfig config) throws IOException {
+        final SnapshotWriter writer = new SnapshotWriter();
+        writer.writeVarint(SnapshotReader.CONTENTS_GENERIC_CONFIG);
+        writer.writeGenericConfig(config);
+        writer.writeTo(file);
+    }
+
+    /**
+     * Write 'config' to 'file' on its own. Read it back with
+     * SnapshotReader.readFlatConfig.
+     */
+    public static void write(File file, FlatConfig config) throws IOException {
+        final SnapshotWriter writer = new SnapshotWriter();
+        writer.writeVarint(SnapshotReader.CONTENTS_FLAT_CONFIG);
+        writer.writeFlatConfig(config);
+        writer.writeTo(file);
+    }
+
+    /**
+     * Write the header, string table and everything written so far to 'out'.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final int magic = SnapshotReader.MAGIC;
+        header.write(magic >>> 24);
+        header.write(magic >>> 16);
+        header.write(magic >>> 8);
+        header.write(magic);
+        writeVarint(header, SnapshotReader.VERSION);
+        writeVarint(header, mStrings.size());
+        for (String s: mStrings) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(header, bytes.length);
+            header.write(bytes, 0, bytes.length);
+        }
+        header.writeTo(out);
+        mBody.writeTo(out);
+    }
+
+    /**
+     * Write the snapshot to 'file'. It is written to a temporary file first and then
+     * renamed, so readers never see a partially written file.
+     */
+    public void writeTo(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            writeTo(out);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -23,12 +23,12 @@ import java.util.List;
  * A String and a Position, where it came from in source code.
  */
 public class Str implements Comparable<Str> {
-    private String mValue;
-    private Position mPosition;
+    private final String mValue;
+    private final Position mPosition;
 
     public Str(String s) {
         mValue = s;
-        mPosition = new Position();
+        mPosition = Position.NO_POSITION;
     }
 
     public Str(Position pos, String s) {
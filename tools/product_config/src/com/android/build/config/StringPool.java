@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A set of canonical Strings that can be looked up by a range of characters or
+ * UTF-8 bytes, so that a String is only allocated the first time a given value
+ * is seen.
+ * <p>
+ * Uses open addressing with linear probing. Not thread safe.
+ */
+public class StringPool {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private String[] mStrings = new String[INITIAL_CAPACITY];
+    private int[] mHashes = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Return the canonical String with the contents of chars[offset..offset+length),
+     * adding one if there isn't one yet.
+     */
+    public String intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+
+        final int mask = mStrings.length - 1;
+        int index = mix(hash) & mask;
+        while (true) {
+            final String s = mStrings[index];
+            if (s == null) {
+                break;
+            }
+            if (mHashes[index] == hash && regionEquals(s, chars, offset, length)) {
+                return s;
+            }
+            index = (index + 1) & mask;
+        }
+
+        final String result = new String(chars, offset, length);
+        insert(index, hash, result);
+        return result;
+    }
+
+    /**
+     * Return the canonical String with the contents of the UTF-8 encoded
+     * bytes[offset..offset+length), adding one if there isn't one yet.
+     * <p>
+     * ASCII is looked up without decoding it first. Anything else is decoded and
+     * looked up as a String.
+     */
+    public String intern(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final byte b = bytes[i];
+            if (b < 0) {
+                return intern(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+            hash = 31 * hash + b;
+        }
+
+        final int mask = mStrings.length - 1;
+        int index = mix(hash) & mask;
+        while (true) {
+            final String s = mStrings[index];
+            if (s == null) {
+                break;
+            }
+            if (mHashes[index] == hash && regionEquals(s, bytes, offset, length)) {
+                return s;
+            }
+            index = (index + 1) & mask;
+        }
+
+        final String result = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        insert(index, hash, result);
+        return result;
+    }
+
+    /**
+     * Return the canonical String equal to 's', adding 's' if there isn't one yet.
+     */
+    public String intern(String s) {
+        final int hash = s.hashCode();
+        final int mask = mStrings.length - 1;
+        int index = mix(hash) & mask;
+        while (true) {
+            final String existing = mStrings[index];
+            if (existing == null) {
+                break;
+            }
+            if (mHashes[index] == hash && existing.equals(s)) {
+                return existing;
+            }
+            index = (index + 1) & mask;
+        }
+
+        insert(index, hash, s);
+        return s;
+    }
+
+    /**
+     * Number of distinct Strings in the pool.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private void insert(int index, int hash, String s) {
+        mStrings[index] = s;
+        mHashes[index] = hash;
+        mSize++;
+        // Keep the table at most half full so the probe sequences stay short.
+        if (mSize * 2 > mStrings.length) {
+            rehash(mStrings.length * 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        final String[] oldStrings = mStrings;
+        final int[] oldHashes = mHashes;
+        mStrings = new String[capacity];
+        mHashes = new int[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldStrings.length; i++) {
+            final String s = oldStrings[i];
+            if (s != null) {
+                final int hash = oldHashes[i];
+                int index = mix(hash) & mask;
+                while (mStrings[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                mStrings[index] = s;
+                mHashes[index] = hash;
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of String.hashCode, which are poor in the low bits for
+     * the short, similar strings we see here.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(String s, char[] chars, int offset, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(String s, byte[] bytes, int offset, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
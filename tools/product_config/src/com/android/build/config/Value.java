@@ -18,18 +18,15 @@ package com.android.build.config;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 /**
  * Class to hold the two types of variables we support, strings and lists of strings.
  */
 public class Value {
-    private static final Pattern SPACES = Pattern.compile("\\s+");
-
     private final VarType mVarType;
     private final Str mStr;
     private final ArrayList<Str> mList;
+    private final WordList mWords;
 
     /**
      * Construct an appropriately typed empty value.
@@ -44,18 +41,31 @@ public class Value {
             mStr = new Str("");
             mList = null;
         }
+        mWords = null;
     }
 
     public Value(VarType varType, Str str) {
         mVarType = varType;
         mStr = str;
         mList = null;
+        mWords = null;
     }
 
     public Value(List<Str> list) {
         mVarType = VarType.LIST;
         mStr = null;
         mList = new ArrayList(list);
+        mWords = null;
+    }
+
+    /**
+     * Construct a LIST value from the words in 'words'.
+     */
+    public Value(WordList words) {
+        mVarType = VarType.LIST;
+        mStr = null;
+        mList = null;
+        mWords = words;
     }
 
     public VarType getVarType() {
@@ -66,10 +76,35 @@ public class Value {
         return mStr;
     }
 
+    /**
+     * Return the items of a LIST value, or null if this isn't one. For values made
+     * from a WordList, this is a new copy each time, so prefer getWordList().
+     */
     public List<Str> getList() {
+        if (mWords != null) {
+            return mWords.toStrList();
+        }
         return mList;
     }
 
+    /**
+     * Return the WordList this value was made from, or null if it wasn't made from
+     * one.
+     */
+    public WordList getWordList() {
+        return mWords;
+    }
+
+    /**
+     * Return the number of items in a LIST value, or 0 if this isn't one.
+     */
+    public int getListSize() {
+        if (mWords != null) {
+            return mWords.size();
+        }
+        return mList == null ? 0 : mList.size();
+    }
+
     /**
      * Normalize a string that is behaving as a list.
      */
@@ -77,7 +112,7 @@ public class Value {
         if (str == null) {
             return null;
         }
-        return SPACES.matcher(str.trim()).replaceAll(" ").trim();
+        return WhitespaceTokenizer.join(str, " ");
     }
 
     /**
@@ -101,6 +136,14 @@ public class Value {
             return normalize(val.mStr);
         }
 
+        if (val.mWords != null) {
+            // The words are already split, so they just need to be joined.
+            if (val.mWords.size() == 0) {
+                return new Str("");
+            }
+            return new Str(val.mWords.getPosition(0), val.mWords.join(" "));
+        }
+
         if (val.mList.size() == 0) {
             return new Str("");
         }
@@ -132,14 +175,7 @@ public class Value {
         if (val == null) {
             return nullValue;
         }
-        final String s = normalize(val).toString();
-        final Matcher m = SPACES.matcher(s);
-        final StringBuilder result = new StringBuilder();
-        if (s.length() > 0 && (val.mVarType == VarType.LIST || m.find())) {
-            result.append("\\\n  ");
-        }
-        result.append(m.replaceAll(" \\\\\n  "));
-        return result.toString();
+        return oneLinePerWord(normalize(val).toString(), val.mVarType == VarType.LIST);
     }
 
     /**
@@ -150,13 +186,19 @@ public class Value {
         if (str == null) {
             return nullValue;
         }
-        final Matcher m = SPACES.matcher(normalize(str.toString()));
-        final StringBuilder result = new StringBuilder();
-        if (m.find()) {
-            result.append("\\\n  ");
+        return oneLinePerWord(normalize(str.toString()), false);
+    }
+
+    /**
+     * Put each word in 's' on its own line, starting on a new line if there is more
+     * than one word, or if 'isList' and there are any.
+     */
+    private static String oneLinePerWord(String s, boolean isList) {
+        final String words = WhitespaceTokenizer.join(s, " \\\n  ");
+        if (s.length() > 0 && (isList || WhitespaceTokenizer.count(s) > 1)) {
+            return "\\\n  " + words;
         }
-        result.append(m.replaceAll(" \\\\\n  "));
-        return result.toString();
+        return words;
     }
 
     /**
@@ -179,10 +221,10 @@ public class Value {
                 str.append(")");
             }
         }
-        if (val.mList != null) {
+        if (val.mStr == null) {
             str.append("mList=");
             str.append("[");
-            for (Str s: val.mList) {
+            for (Str s: val.getList()) {
                 str.append(" \"");
                 str.append(s.toString());
                 if (false) {
@@ -207,8 +249,8 @@ public class Value {
         if (mStr != null) {
             result.add(mStr.getPosition());
         }
-        if (mList != null) {
-            for (Str str: mList) {
+        if (mStr == null) {
+            for (Str str: getList()) {
                 result.add(str.getPosition());
             }
         }
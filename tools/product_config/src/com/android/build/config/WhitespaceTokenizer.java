@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+/**
+ * Walks through the whitespace separated words in a string, the way make does.
+ * <p>
+ * The words are the same as splitting str.trim() on the regex \s+, but finding them
+ * doesn't allocate anything. Use it like this:
+ * <pre>
+ *   final WhitespaceTokenizer words = new WhitespaceTokenizer(str);
+ *   while (words.next()) {
+ *       ... words.getStart(), words.getEnd(), words.getWord() ...
+ *   }
+ * </pre>
+ */
+public final class WhitespaceTokenizer {
+    private final String mString;
+    private final int mEnd;
+    private int mPos;
+    private int mWordStart = -1;
+    private int mWordEnd = -1;
+
+    public WhitespaceTokenizer(String str) {
+        mString = str;
+        // Skip what String.trim() would.
+        int start = 0;
+        int end = str.length();
+        while (start < end && str.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && str.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        mPos = start;
+        mEnd = end;
+    }
+
+    /**
+     * The same characters as \s in a regex.
+     */
+    public static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Move to the next word. Returns false if there are no more.
+     */
+    public boolean next() {
+        final String str = mString;
+        final int end = mEnd;
+        int pos = mPos;
+        while (pos < end && isSpace(str.charAt(pos))) {
+            pos++;
+        }
+        if (pos >= end) {
+            mPos = end;
+            return false;
+        }
+        mWordStart = pos;
+        while (pos < end && !isSpace(str.charAt(pos))) {
+            pos++;
+        }
+        mWordEnd = pos;
+        mPos = pos;
+        return true;
+    }
+
+    /**
+     * Index of the first character of the current word.
+     */
+    public int getStart() {
+        return mWordStart;
+    }
+
+    /**
+     * Index after the last character of the current word.
+     */
+    public int getEnd() {
+        return mWordEnd;
+    }
+
+    /**
+     * The current word.
+     */
+    public String getWord() {
+        return mString.substring(mWordStart, mWordEnd);
+    }
+
+    /**
+     * Return the words in 'str' with 'separator' between each of them. If that would be
+     * the same as 'str', then 'str' is returned.
+     */
+    public static String join(String str, String separator) {
+        final WhitespaceTokenizer words = new WhitespaceTokenizer(str);
+        StringBuilder result = null;
+        // Until there's a difference, just keep track of how much of 'str' matches.
+        int same = 0;
+        while (words.next()) {
+            final int start = words.getStart();
+            if (result == null) {
+                if (same == 0 ? start == 0 : str.startsWith(separator, same)
+                            && start == same + separator.length()) {
+                    same = words.getEnd();
+                    continue;
+                }
+                result = new StringBuilder(str.length());
+                if (same > 0) {
+                    result.append(str, 0, same);
+                }
+            }
+            if (result.length() > 0) {
+                result.append(separator);
+            }
+            result.append(str, start, words.getEnd());
+        }
+        if (result == null) {
+            return same == str.length() ? str : str.substring(0, same);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Return the number of words in 'str'.
+     */
+    public static int count(String str) {
+        final WhitespaceTokenizer words = new WhitespaceTokenizer(str);
+        int count = 0;
+        while (words.next()) {
+            count++;
+        }
+        return count;
+    }
+}
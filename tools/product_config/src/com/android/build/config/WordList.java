@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An immutable list of words and where each of them came from, for the values of
+ * LIST variables.
+ * <p>
+ * Words and Positions are stored as ids in a Pool, so a list is a pair of int arrays
+ * rather than a list of Str objects. Concatenating lists shares them rather than
+ * copying them, so building up a variable with += through a deep inherit graph
+ * takes time proportional to the number of words, not the square of it.
+ */
+public final class WordList {
+    /**
+     * Lists up to this long are copied when they are concatenated, so that small
+     * lists stay flat.
+     */
+    private static final int MAX_COPY = 32;
+
+    private static final int[] NO_IDS = new int[0];
+
+    /**
+     * Assigns ids to words and Positions. All of the lists built from one Pool use
+     * the same ids.
+     * <p>
+     * Not thread safe.
+     */
+    public static class Pool {
+        private final HashMap<String, Integer> mWordIds = new HashMap();
+        private final ArrayList<String> mWords = new ArrayList();
+        private final HashMap<Position, Integer> mPositionIds = new HashMap();
+        private final ArrayList<Position> mPositions = new ArrayList();
+
+        private final WordList mEmpty = new WordList(this, NO_IDS, NO_IDS);
+
+        public int getWordId(String word) {
+            Integer id = mWordIds.get(word);
+            if (id == null) {
+                id = mWords.size();
+                mWords.add(word);
+                mWordIds.put(word, id);
+            }
+            return id;
+        }
+
+        public int getPositionId(Position pos) {
+            Integer id = mPositionIds.get(pos);
+            if (id == null) {
+                id = mPositions.size();
+                mPositions.add(pos);
+                mPositionIds.put(pos, id);
+            }
+            return id;
+        }
+
+        public String getWord(int id) {
+            return mWords.get(id);
+        }
+
+        public Position getPosition(int id) {
+            return mPositions.get(id);
+        }
+
+        /**
+         * The empty list for this Pool.
+         */
+        public WordList empty() {
+            return mEmpty;
+        }
+    }
+
+    /**
+     * Collects words for a new WordList.
+     */
+    public static class Builder {
+        private final Pool mPool;
+        private int[] mWords = new int[8];
+        private int[] mPositions = new int[8];
+        private int mSize;
+
+        public Builder(Pool pool) {
+            mPool = pool;
+        }
+
+        public Builder add(String word, Position pos) {
+            return add(mPool.getWordId(word), mPool.getPositionId(pos));
+        }
+
+        Builder add(int wordId, int positionId) {
+            if (mSize == mWords.length) {
+                mWords = Arrays.copyOf(mWords, mSize * 2);
+                mPositions = Arrays.copyOf(mPositions, mSize * 2);
+            }
+            mWords[mSize] = wordId;
+            mPositions[mSize] = positionId;
+            mSize++;
+            return this;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public WordList build() {
+            if (mSize == 0) {
+                return mPool.empty();
+            }
+            return new WordList(mPool, Arrays.copyOf(mWords, mSize),
+                    Arrays.copyOf(mPositions, mSize));
+        }
+    }
+
+    private final Pool mPool;
+    private final int mSize;
+
+    /**
+     * The word and position ids, if this is a flat list, otherwise null.
+     */
+    private final int[] mWords;
+    private final int[] mPositions;
+
+    /**
+     * The two halves, if this is a concatenation, otherwise null.
+     */
+    private final WordList mLeft;
+    private final WordList mRight;
+
+    /**
+     * Flat copy of a concatenation, made the first time it's needed.
+     */
+    private WordList mFlat;
+
+    private WordList(Pool pool, int[] words, int[] positions) {
+        mPool = pool;
+        mSize = words.length;
+        mWords = words;
+        mPositions = positions;
+        mLeft = null;
+        mRight = null;
+    }
+
+    private WordList(WordList left, WordList right) {
+        mPool = left.mPool;
+        mSize = left.mSize + right.mSize;
+        mWords = null;
+        mPositions = null;
+        mLeft = left;
+        mRight = right;
+    }
+
+    public Pool getPool() {
+        return mPool;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return a list with the words of 'this' followed by the words of 'that'. Neither
+     * is copied unless it is short. If 'that' is from a different Pool, its words are
+     * added to this one's.
+     */
+    public WordList concat(WordList that) {
+        if (that.mPool != mPool) {
+            that = that.copyTo(mPool);
+        }
+        if (that.mSize == 0) {
+            return this;
+        }
+        if (mSize == 0) {
+            return that;
+        }
+        if (mSize + that.mSize <= MAX_COPY) {
+            final Builder builder = new Builder(mPool);
+            this.addTo(builder);
+            that.addTo(builder);
+            return builder.build();
+        }
+        return new WordList(this, that);
+    }
+
+    /**
+     * Return the list with the same words and positions in 'pool'.
+     */
+    private WordList copyTo(Pool pool) {
+        final WordList flat = flat();
+        final Builder builder = new Builder(pool);
+        for (int i = 0; i < mSize; i++) {
+            builder.add(mPool.getWord(flat.mWords[i]), mPool.getPosition(flat.mPositions[i]));
+        }
+        return builder.build();
+    }
+
+    private void addTo(Builder builder) {
+        final WordList flat = flat();
+        for (int i = 0; i < mSize; i++) {
+            builder.add(flat.mWords[i], flat.mPositions[i]);
+        }
+    }
+
+    /**
+     * Return a flat list with the same contents as this one.
+     */
+    private WordList flat() {
+        if (mWords != null) {
+            return this;
+        }
+        WordList result = mFlat;
+        if (result == null) {
+            final int[] words = new int[mSize];
+            final int[] positions = new int[mSize];
+            // Walk the tree without recursion, because appending one word at a time
+            // makes it as deep as it is long.
+            final ArrayList<WordList> stack = new ArrayList();
+            stack.add(this);
+            int index = 0;
+            while (!stack.isEmpty()) {
+                final WordList node = stack.remove(stack.size() - 1);
+                final WordList source = node.mWords != null ? node : node.mFlat;
+                if (source != null) {
+                    System.arraycopy(source.mWords, 0, words, index, node.mSize);
+                    System.arraycopy(source.mPositions, 0, positions, index, node.mSize);
+                    index += node.mSize;
+                } else {
+                    stack.add(node.mRight);
+                    stack.add(node.mLeft);
+                }
+            }
+            result = new WordList(mPool, words, positions);
+            mFlat = result;
+        }
+        return result;
+    }
+
+    public String getWord(int index) {
+        return mPool.getWord(flat().mWords[index]);
+    }
+
+    public Position getPosition(int index) {
+        return mPool.getPosition(flat().mPositions[index]);
+    }
+
+    /**
+     * Return the words as Strs.
+     */
+    public List<Str> toStrList() {
+        final WordList flat = flat();
+        final ArrayList<Str> result = new ArrayList(mSize);
+        for (int i = 0; i < mSize; i++) {
+            result.add(new Str(mPool.getPosition(flat.mPositions[i]),
+                        mPool.getWord(flat.mWords[i])));
+        }
+        return result;
+    }
+
+    /**
+     * Return the words separated by 'separator'.
+     */
+    public String join(String separator) {
+        final WordList flat = flat();
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            if (i != 0) {
+                result.append(separator);
+            }
+            result.append(mPool.getWord(flat.mWords[i]));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + join(", ") + "]";
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ConvertMakeToGenericConfigTest {
+
+    private static MakeConfig.Block block(MakeConfig.BlockType type, MakeConfig.Block previous,
+            Position pos, String... namesAndValues) {
+        final MakeConfig.Block block = new MakeConfig.Block(type, previous);
+        final TreeMap<String, Str> vars = new TreeMap();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            vars.put(namesAndValues[i], new Str(pos, namesAndValues[i + 1]));
+        }
+        block.setVars(vars);
+        return block;
+    }
+
+    private static Map<String, MakeConfig> makeConfigs(int count, int brokenFile) {
+        return makeConfigs(count, brokenFile, true);
+    }
+
+    /**
+     * A config with 'count' files, where every third one has a bad @inherit marker.
+     * If 'brokenFile' isn't -1, that file is missing its AFTER block. If 'delta' is
+     * false, the blocks aren't chained together, so they are converted by comparing
+     * all of their variables instead of just the changes.
+     */
+    private static Map<String, MakeConfig> makeConfigs(int count, int brokenFile,
+            boolean delta) {
+        final MakeConfig products = new MakeConfig();
+        products.setPhase("PRODUCTS");
+        products.setRootNodes(Arrays.asList("file0.mk"));
+        products.addProductVar("PRODUCT_PACKAGES", VarType.LIST);
+        for (int i = 0; i < count; i++) {
+            final String child = "child" + i + ".mk";
+            final String filename = "file" + i + ".mk";
+            final MakeConfig.ConfigFile file = new MakeConfig.ConfigFile(filename);
+            final MakeConfig.Block before = block(MakeConfig.BlockType.BEFORE, null,
+                    new Position(filename, 1), "PRODUCT_PACKAGES", "", "OTHER", "x");
+            file.addBlock(before);
+            final MakeConfig.Block inherit = block(MakeConfig.BlockType.INHERIT,
+                    delta ? before : null, new Position(filename, 2),
+                    "PRODUCT_PACKAGES", "p" + i + (i % 3 == 0 ? "" : " @inherit:" + child),
+                    "OTHER", "x");
+            inherit.setInheritedFile(new Str(child));
+            file.addBlock(inherit);
+            if (i != brokenFile) {
+                file.addBlock(block(MakeConfig.BlockType.AFTER, delta ? inherit : null,
+                            new Position(filename, 3),
+                            "PRODUCT_PACKAGES", "p" + i + " @inherit:" + child + " q" + i,
+                            "NEW", "y"));
+            }
+            products.addConfigFile(file);
+        }
+        final HashMap<String, MakeConfig> result = new HashMap();
+        result.put("PRODUCTS", products);
+        result.put("PRODUCT-EXPAND", new MakeConfig());
+        return result;
+    }
+
+    private static String toMake(GenericConfig config) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(bytes);
+        MakeWriter.write(out, config, 0);
+        out.flush();
+        return bytes.toString();
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        final Map<String, MakeConfig> make = makeConfigs(500, -1);
+
+        final Errors sequentialErrors = new Errors();
+        final GenericConfig sequential = new ConvertMakeToGenericConfig(sequentialErrors, false)
+                .convert(make);
+        final Errors parallelErrors = new Errors();
+        final GenericConfig parallel = new ConvertMakeToGenericConfig(parallelErrors, true)
+                .convert(make);
+
+        Assert.assertEquals(500, parallel.getFiles().size());
+        Assert.assertEquals(toMake(sequential), toMake(parallel));
+        // The errors come out in file order either way.
+        final String messages = TestErrors.getErrorMessages(sequentialErrors);
+        Assert.assertEquals(167, sequentialErrors.getEntries().size());
+        Assert.assertEquals(messages, TestErrors.getErrorMessages(parallelErrors));
+        Assert.assertTrue(messages, messages.indexOf("child3.mk") < messages.indexOf("child6.mk"));
+    }
+
+    @Test
+    public void testParallelException() {
+        final Map<String, MakeConfig> make = makeConfigs(100, 50);
+        for (boolean parallel: new boolean[] { false, true }) {
+            final Errors errors = new Errors();
+            try {
+                new ConvertMakeToGenericConfig(errors, parallel).convert(make);
+                Assert.fail("Expected an exception");
+            } catch (RuntimeException ex) {
+                Assert.assertEquals("expected first block to be AFTER", ex.getMessage());
+            }
+            // Only the errors from the files before the broken one are reported.
+            Assert.assertEquals(17, errors.getEntries().size());
+        }
+    }
+
+    @Test
+    public void testDeltaMatchesFull() {
+        final Errors fullErrors = new Errors();
+        final String full = toMake(new ConvertMakeToGenericConfig(fullErrors)
+                .convert(makeConfigs(10, -1, false)));
+        final Errors deltaErrors = new Errors();
+        final String delta = toMake(new ConvertMakeToGenericConfig(deltaErrors)
+                .convert(makeConfigs(10, -1, true)));
+
+        Assert.assertEquals(full, delta);
+        Assert.assertEquals(TestErrors.getErrorMessages(fullErrors),
+                TestErrors.getErrorMessages(deltaErrors));
+        Assert.assertTrue(full, full.contains("OTHER := \n"));
+        Assert.assertTrue(full, full.contains("NEW := y\n"));
+    }
+}
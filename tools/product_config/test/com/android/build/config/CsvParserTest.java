@@ -21,7 +21,12 @@ package com.android.build.config;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -54,6 +59,30 @@ public class CsvParserTest {
         }
     }
 
+    /**
+     * Reader that returns at most 'chunk' characters per read, to exercise the
+     * places where a field spans more than one read.
+     */
+    private static class ShortReader extends Reader {
+        private final Reader mReader;
+        private final int mChunk;
+
+        ShortReader(String text, int chunk) {
+            mReader = new StringReader(text);
+            mChunk = chunk;
+        }
+
+        @Override
+        public int read(char[] buf, int offset, int length) throws IOException {
+            return mReader.read(buf, offset, Math.min(length, mChunk));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
     @Test
     public void testEmptyString() throws Exception {
         List<CsvParser.Line> lines = CsvParser.parse(new StringReader(
@@ -144,5 +173,116 @@ public class CsvParserTest {
             System.out.println("Caught: " + ex);
         }
     }
-}
 
+    @Test
+    public void testShortReads() throws Exception {
+        for (int chunk = 1; chunk <= 4; chunk++) {
+            List<CsvParser.Line> lines = CsvParser.parse(new ShortReader(
+                        ",\"ab\"\"\nc\",,de\n"
+                        + "fg,\n"
+                        + "\n"
+                        + ",\n"
+                        + "hijk", chunk));
+
+            Assert.assertEquals(4, lines.size());
+            assertLineEquals(lines.get(0), 2, "", "ab\"\nc", "", "de");
+            assertLineEquals(lines.get(1), 3, "fg", "");
+            assertLineEquals(lines.get(2), 5, "", "");
+            assertLineEquals(lines.get(3), 6, "hijk");
+        }
+    }
+
+    @Test
+    public void testLongField() throws Exception {
+        final StringBuilder longField = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            longField.append((char)('a' + (i % 26)));
+        }
+        final String text = longField.toString();
+        List<CsvParser.Line> lines = CsvParser.parse(new StringReader(
+                    "\"" + text + "\"," + text + "\n" + text));
+
+        Assert.assertEquals(2, lines.size());
+        assertLineEquals(lines.get(0), 1, text, text);
+        assertLineEquals(lines.get(1), 2, text);
+    }
+
+    @Test
+    public void testEndInsideQuotedPosition() throws Exception {
+        try {
+            CsvParser.parse(new StringReader("ab\n\"cd"));
+            throw new RuntimeException("Didn't throw ParseException");
+        } catch (CsvParser.ParseException ex) {
+            Assert.assertEquals(2, ex.getLine());
+            Assert.assertEquals(4, ex.getColumn());
+        }
+    }
+
+    @Test
+    public void testCharacterAfterQuotedFieldPosition() throws Exception {
+        try {
+            CsvParser.parse(new StringReader("a,\"b\nc\"x"));
+            throw new RuntimeException("Didn't throw ParseException");
+        } catch (CsvParser.ParseException ex) {
+            Assert.assertEquals(2, ex.getLine());
+            Assert.assertEquals(3, ex.getColumn());
+        }
+    }
+
+    @Test
+    public void testVisitor() throws Exception {
+        final ArrayList<CsvParser.Line> lines = new ArrayList();
+        CsvParser.parse(new StringReader("a,b\n\nc\n"), (line) -> {
+            lines.add(line);
+        });
+
+        Assert.assertEquals(2, lines.size());
+        assertLineEquals(lines.get(0), 1, "a", "b");
+        assertLineEquals(lines.get(1), 3, "c");
+    }
+
+    private static List<CsvParser.Line> parseBytes(String text) throws Exception {
+        final ArrayList<CsvParser.Line> lines = new ArrayList();
+        CsvParser.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), (line) -> {
+            lines.add(line);
+        });
+        return lines;
+    }
+
+    @Test
+    public void testBytesComplex() throws Exception {
+        List<CsvParser.Line> lines = parseBytes(
+                    ",\"ab\"\"\nc\",,de\n"
+                    + "fg,\n"
+                    + "\n"
+                    + ",\n"
+                    + "hijk");
+
+        Assert.assertEquals(4, lines.size());
+        assertLineEquals(lines.get(0), 2, "", "ab\"\nc", "", "de");
+        assertLineEquals(lines.get(1), 3, "fg", "");
+        assertLineEquals(lines.get(2), 5, "", "");
+        assertLineEquals(lines.get(3), 6, "hijk");
+    }
+
+    @Test
+    public void testBytesNonAscii() throws Exception {
+        List<CsvParser.Line> lines = parseBytes("caf\u00e9,\"\u20ac\"\n\u00e9t\u00e9");
+
+        Assert.assertEquals(2, lines.size());
+        assertLineEquals(lines.get(0), 1, "caf\u00e9", "\u20ac");
+        assertLineEquals(lines.get(1), 2, "\u00e9t\u00e9");
+    }
+
+    @Test
+    public void testBytesErrorPosition() throws Exception {
+        try {
+            parseBytes("a,\"\u00e9\nc\u20ac\"x");
+            throw new RuntimeException("Didn't throw ParseException");
+        } catch (CsvParser.ParseException ex) {
+            // Columns count characters, not bytes.
+            Assert.assertEquals(2, ex.getLine());
+            Assert.assertEquals(4, ex.getColumn());
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Writes made up dumpconfig.mk output for an inherit graph of any size, for testing
+ * how the tool scales without needing a real source tree.
+ * <p>
+ * The graph has 'depth' levels below the root. Each file inherits 'fanOut' files from
+ * the next level. With probability 'diamondRatio', an inherit points at a file in the
+ * next level that another file already inherits, instead of a new one, which makes
+ * diamonds. Edges only ever go down a level, so there are no cycles.
+ * <p>
+ * There are 'varCount' product variables, half of them lists and half single values.
+ * Each file assigns 'assignsPerFile' of them, and list assignments have 'listLength'
+ * words. The final values in the output are not the real flattened values, so
+ * OutputChecker will report differences.
+ * <p>
+ * The same parameters and seed always make the same output. It can also be run from
+ * the command line, and writes to stdout:
+ * <pre>
+ *   java -cp product-config-test.jar com.android.build.config.DumpConfigGenerator \
+ *       --depth 6 --fan_out 3 --diamond_ratio 0.2 --vars 200 --list_length 10
+ * </pre>
+ */
+public class DumpConfigGenerator {
+    private static final String CONFIG_MK = "build/make/core/product_config.mk";
+
+    private int mDepth = 4;
+    private int mFanOut = 3;
+    private double mDiamondRatio = 0.2;
+    private int mVarCount = 20;
+    private int mListLength = 5;
+    private int mAssignsPerFile = 4;
+    private long mSeed = 1;
+
+    private List<String> mListVars;
+    private List<String> mSingleVars;
+    private TreeMap<String, List<Inherit>> mInherits;
+    private Random mRandom;
+
+    private static class Inherit {
+        final String mChild;
+        final int mLine;
+
+        Inherit(String child, int line) {
+            mChild = child;
+            mLine = line;
+        }
+    }
+
+    public DumpConfigGenerator setDepth(int depth) {
+        mDepth = depth;
+        return this;
+    }
+
+    public DumpConfigGenerator setFanOut(int fanOut) {
+        mFanOut = fanOut;
+        return this;
+    }
+
+    public DumpConfigGenerator setDiamondRatio(double diamondRatio) {
+        mDiamondRatio = diamondRatio;
+        return this;
+    }
+
+    public DumpConfigGenerator setVarCount(int varCount) {
+        mVarCount = varCount;
+        return this;
+    }
+
+    public DumpConfigGenerator setListLength(int listLength) {
+        mListLength = listLength;
+        return this;
+    }
+
+    public DumpConfigGenerator setAssignsPerFile(int assignsPerFile) {
+        mAssignsPerFile = assignsPerFile;
+        return this;
+    }
+
+    public DumpConfigGenerator setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    /**
+     * Return the generated output as a String.
+     */
+    public String generate() {
+        final StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException ex) {
+            // StringWriter doesn't throw.
+            throw new RuntimeException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the generated output to 'out'.
+     */
+    public void write(Writer out) throws IOException {
+        mRandom = new Random(mSeed);
+        mListVars = new ArrayList();
+        mSingleVars = new ArrayList();
+        for (int i = 0; i < mVarCount; i++) {
+            if (i % 2 == 0) {
+                mListVars.add("PRODUCT_LIST_" + i);
+            } else {
+                mSingleVars.add("PRODUCT_SINGLE_" + i);
+            }
+        }
+        final String root = makeGraph();
+
+        out.write("dumpconfig_version,1\n");
+        out.write("dumpconfig_file,out/dumpconfig.csv\n");
+        // Use the same seed for both, so the phases are the same, like they are for
+        // a real product.
+        final long phaseSeed = mRandom.nextLong();
+        writePhase(out, "PRODUCTS", root, phaseSeed);
+        writePhase(out, "PRODUCT-EXPAND", root, phaseSeed);
+        out.write("***DONE***\n");
+        out.flush();
+    }
+
+    /**
+     * Fill in mInherits, and return the root file.
+     */
+    private String makeGraph() {
+        mInherits = new TreeMap();
+        final String root = fileName(0, 0);
+        mInherits.put(root, new ArrayList());
+        List<String> level = new ArrayList();
+        level.add(root);
+        for (int depth = 1; depth <= mDepth; depth++) {
+            final ArrayList<String> next = new ArrayList();
+            for (String parent: level) {
+                final HashSet<String> children = new HashSet();
+                int line = 1;
+                for (int i = 0; i < mFanOut; i++) {
+                    String child;
+                    if (next.size() > 0 && mRandom.nextDouble() < mDiamondRatio) {
+                        child = next.get(mRandom.nextInt(next.size()));
+                    } else {
+                        child = fileName(depth, next.size());
+                        next.add(child);
+                        mInherits.put(child, new ArrayList());
+                    }
+                    if (children.add(child)) {
+                        line += 1 + mRandom.nextInt(10);
+                        mInherits.get(parent).add(new Inherit(child, line));
+                    }
+                }
+            }
+            level = next;
+        }
+        return root;
+    }
+
+    private static String fileName(int depth, int index) {
+        return "device/synthetic/level" + depth + "/product" + index + ".mk";
+    }
+
+    private void writePhase(Writer out, String phase, String root, long seed)
+            throws IOException {
+        final Random random = new Random(seed);
+        out.write("phase," + phase + "," + root + "\n");
+        for (String var: mListVars) {
+            out.write("var,list," + var + "\n");
+        }
+        for (String var: mSingleVars) {
+            out.write("var,single," + var + "\n");
+        }
+        final TreeMap<String, String[]> globals = new TreeMap();
+        globals.put("TARGET_PRODUCT", new String[] { "synthetic", "<environment>" });
+        globals.put("TARGET_BUILD_VARIANT", new String[] { "userdebug", "<environment>" });
+        writeVals(out, "", "initial", new TreeMap(), globals);
+
+        // Files are imported depth first, and only the first time they're seen.
+        final ArrayList<String> order = new ArrayList();
+        addImportOrder(root, new HashSet(), order);
+        for (String file: order) {
+            writeFile(out, file, random, globals);
+        }
+
+        final TreeMap<String, String[]> finals = new TreeMap();
+        finals.put("PRODUCTS", new String[] { root, "" });
+        writeVals(out, "", "final", finals, globals);
+    }
+
+    private void addImportOrder(String file, HashSet<String> seen, List<String> order) {
+        if (!seen.add(file)) {
+            return;
+        }
+        order.add(file);
+        for (Inherit inherit: mInherits.get(file)) {
+            addImportOrder(inherit.mChild, seen, order);
+        }
+    }
+
+    /**
+     * Write one file's import, blocks and inherits. The product variables start out
+     * empty for each file, as node_fns.mk does, and each inherit adds an @inherit:
+     * marker to all of them.
+     */
+    private void writeFile(Writer out, String file, Random random,
+            TreeMap<String, String[]> globals) throws IOException {
+        final List<Inherit> inherits = mInherits.get(file);
+        final TreeMap<String, String[]> vars = new TreeMap();
+        for (String var: mListVars) {
+            vars.put(var, new String[] { "", "" });
+        }
+        for (String var: mSingleVars) {
+            vars.put(var, new String[] { "", "" });
+        }
+
+        out.write("import," + file + " " + CONFIG_MK + "\n");
+        writeVals(out, file, "before", vars, globals);
+
+        // Spread the assignments out between the inherits.
+        final int lastLine = inherits.size() > 0
+                ? inherits.get(inherits.size() - 1).mLine + 10 : 10;
+        final int[] assignLines = new int[mAssignsPerFile];
+        for (int i = 0; i < assignLines.length; i++) {
+            assignLines[i] = 1 + random.nextInt(lastLine);
+        }
+        Arrays.sort(assignLines);
+
+        int nextAssign = 0;
+        for (Inherit inherit: inherits) {
+            while (nextAssign < assignLines.length && assignLines[nextAssign] < inherit.mLine) {
+                assign(vars, file, assignLines[nextAssign++], random);
+            }
+            out.write("inherit," + file + "," + inherit.mChild + "\n");
+            for (String[] value: vars.values()) {
+                value[0] = (value[0] + " @inherit:" + inherit.mChild).trim();
+                if (value[1].isEmpty()) {
+                    value[1] = file + ":" + inherit.mLine;
+                }
+            }
+            writeVals(out, file, "inherit", vars, globals);
+        }
+        while (nextAssign < assignLines.length) {
+            assign(vars, file, assignLines[nextAssign++], random);
+        }
+
+        out.write("imported," + file + " " + CONFIG_MK + "\n");
+        writeVals(out, file, "after", vars, globals);
+    }
+
+    private void assign(TreeMap<String, String[]> vars, String file, int line,
+            Random random) {
+        if (mVarCount == 0) {
+            return;
+        }
+        final String position = file + ":" + line;
+        if (mSingleVars.size() == 0 || (mListVars.size() > 0 && random.nextBoolean())) {
+            final String[] value = vars.get(mListVars.get(random.nextInt(mListVars.size())));
+            final StringBuilder words = new StringBuilder();
+            for (int i = 0; i < mListLength; i++) {
+                words.append(" module");
+                // Drawn from a limited set, so words repeat between files like they do
+                // in a real tree.
+                words.append(random.nextInt(Math.max(1, 20 * mListLength)));
+            }
+            // Append, like +=.
+            value[0] = (value[0] + words).trim();
+            value[1] = position;
+        } else {
+            final String[] value = vars.get(mSingleVars.get(random.nextInt(mSingleVars.size())));
+            // Only the first assignment sticks, like ?=.
+            if (value[0].isEmpty() || value[0].contains("@inherit:")) {
+                value[0] = "value" + random.nextInt(50);
+                value[1] = position;
+            }
+        }
+    }
+
+    private static void writeVals(Writer out, String file, String block,
+            TreeMap<String, String[]> vars, TreeMap<String, String[]> globals)
+            throws IOException {
+        for (Map.Entry<String, String[]> entry: vars.entrySet()) {
+            writeVal(out, file, block, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String[]> entry: globals.entrySet()) {
+            if (!vars.containsKey(entry.getKey())) {
+                writeVal(out, file, block, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void writeVal(Writer out, String file, String block, String name,
+            String[] value) throws IOException {
+        out.write("val,");
+        out.write(quote(file));
+        out.write(',');
+        out.write(block);
+        out.write(',');
+        out.write(quote(name));
+        out.write(',');
+        out.write(quote(value[0]));
+        out.write(',');
+        out.write(quote(value[1]));
+        out.write('\n');
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws IOException {
+        final DumpConfigGenerator generator = new DumpConfigGenerator();
+        if (args.length % 2 != 0) {
+            System.err.println("Every argument needs a value.");
+            System.exit(1);
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--depth":
+                    generator.setDepth(Integer.parseInt(value));
+                    break;
+                case "--fan_out":
+                    generator.setFanOut(Integer.parseInt(value));
+                    break;
+                case "--diamond_ratio":
+                    generator.setDiamondRatio(Double.parseDouble(value));
+                    break;
+                case "--vars":
+                    generator.setVarCount(Integer.parseInt(value));
+                    break;
+                case "--list_length":
+                    generator.setListLength(Integer.parseInt(value));
+                    break;
+                case "--assigns_per_file":
+                    generator.setAssignsPerFile(Integer.parseInt(value));
+                    break;
+                case "--seed":
+                    generator.setSeed(Long.parseLong(value));
+                    break;
+                default:
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        generator.write(new BufferedWriter(new OutputStreamWriter(System.out,
+                        StandardCharsets.UTF_8)));
+    }
+}
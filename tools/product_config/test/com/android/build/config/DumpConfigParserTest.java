@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+public class DumpConfigParserTest {
+    private static final String INPUT =
+            "dumpconfig_version,1\n"
+            + "phase,PRODUCTS,a.mk\n"
+            + "var,list,PRODUCT_PACKAGES\n"
+            + "import,a.mk\n"
+            + "val,\"a.mk\",before,\"PRODUCT_PACKAGES\",\"\",\"\"\n"
+            + "val,\"a.mk\",before,\"OTHER\",\"x\",\"\"\n"
+            + "inherit,a.mk,b.mk\n"
+            + "val,\"a.mk\",inherit,\"PRODUCT_PACKAGES\",\"@inherit:b.mk\",\"a.mk:2\"\n"
+            + "val,\"a.mk\",inherit,\"OTHER\",\"x\",\"\"\n"
+            + "imported,a.mk\n"
+            + "val,\"a.mk\",after,\"PRODUCT_PACKAGES\",\"@inherit:b.mk p\",\"a.mk:3\"\n"
+            + "val,\"a.mk\",after,\"OTHER\",\"x\",\"\"\n"
+            + "phase,PRODUCT-EXPAND,a.mk\n"
+            + "import,a.mk\n"
+            + "val,\"a.mk\",before,\"OTHER\",\"y\",\"\"\n"
+            + "imported,a.mk\n"
+            + "val,\"a.mk\",after,\"OTHER\",\"z\",\"\"\n";
+
+    @Test
+    public void testBlocks() throws CsvParser.ParseException, IOException {
+        final Errors errors = new Errors();
+        final Map<String, MakeConfig> configs = DumpConfigParser.parse(errors, "test",
+                new StringReader(INPUT));
+        Assert.assertFalse(TestErrors.getErrorMessages(errors), errors.hadWarningOrError());
+
+        final List<MakeConfig.Block> blocks
+                = configs.get("PRODUCTS").getConfigFile("a.mk").getBlocks();
+        Assert.assertEquals(3, blocks.size());
+        Assert.assertEquals(2, blocks.get(0).getVarCount());
+        Assert.assertEquals("@inherit:b.mk", blocks.get(1).getVar("PRODUCT_PACKAGES").toString());
+        Assert.assertEquals("b.mk", blocks.get(1).getInheritedFile().toString());
+
+        // Later blocks only store what changed, but still have all of the variables,
+        // even after the next phase has started.
+        final MakeConfig.Block after = blocks.get(2);
+        Assert.assertSame(blocks.get(1), after.getPrevious());
+        Assert.assertEquals(1, after.getChangedVars().size());
+        Assert.assertEquals(2, after.getVars().size());
+        Assert.assertEquals("x", after.getVar("OTHER").toString());
+        Assert.assertEquals(3, after.getVar("PRODUCT_PACKAGES").getPosition().getLine());
+
+        final List<MakeConfig.Block> expandBlocks
+                = configs.get("PRODUCT-EXPAND").getConfigFile("a.mk").getBlocks();
+        Assert.assertEquals("y", expandBlocks.get(0).getVar("OTHER").toString());
+        Assert.assertEquals("z", expandBlocks.get(1).getVar("OTHER").toString());
+    }
+}
@@ -19,6 +19,8 @@ package com.android.build.config;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 
@@ -118,4 +120,224 @@ public class ErrorReporterTest {
         Assert.assertTrue(exceptionThrown);
         Assert.assertEquals(TestErrors.Level.ERROR, errors.ERROR_FIXED.getLevel());
     }
+
+    /**
+     * Test that errors added from several threads at once are all kept, with each
+     * thread's errors in the order it added them.
+     */
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        final TestErrors errors = new TestErrors();
+        final int threadCount = 8;
+        final int perThread = 1000;
+        errors.setMaxEntriesPerCategory(threadCount * perThread);
+
+        final ArrayList<Thread> threads = new ArrayList();
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    errors.WARNING.add(new Position("t" + thread, i + 1), "w");
+                }
+            }));
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        Assert.assertTrue(errors.hadWarningOrError());
+        Assert.assertFalse(errors.hadError());
+        Assert.assertEquals(threadCount * perThread, errors.getEntryCount());
+
+        final List<TestErrors.Entry> entries = errors.getEntries();
+        Assert.assertEquals(threadCount * perThread, entries.size());
+        final int[] nextLine = new int[threadCount];
+        for (TestErrors.Entry entry: entries) {
+            final int thread = Integer.parseInt(entry.getPosition().getFile().substring(1));
+            nextLine[thread]++;
+            Assert.assertEquals(nextLine[thread], entry.getPosition().getLine());
+        }
+    }
+
+    /**
+     * Test that errors from different threads come back in the order they were added.
+     */
+    @Test
+    public void testOrderAcrossThreads() throws InterruptedException {
+        final TestErrors errors = new TestErrors();
+
+        errors.WARNING.add("first");
+        final Thread thread = new Thread(() -> errors.ERROR.add("second"));
+        thread.start();
+        thread.join();
+        errors.WARNING.add("third");
+
+        final List<TestErrors.Entry> entries = errors.getEntries();
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("first", entries.get(0).getMessage());
+        Assert.assertEquals("second", entries.get(1).getMessage());
+        Assert.assertEquals("third", entries.get(2).getMessage());
+        Assert.assertTrue(errors.hadError());
+    }
+
+    /**
+     * Test that looking up the categories from several threads at once finds the same ones.
+     */
+    @Test
+    public void testConcurrentCategories() throws InterruptedException {
+        final TestErrors errors = new TestErrors();
+        final Object[] found = new Object[4];
+
+        final ArrayList<Thread> threads = new ArrayList();
+        for (int t = 0; t < found.length; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> found[thread] = errors.getCategories()));
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        for (Object categories: found) {
+            Assert.assertSame(errors.getCategories(), categories);
+        }
+        Assert.assertEquals(4, errors.getCategories().size());
+    }
+
+    /**
+     * Test that a second error at the same line in the same category is dropped, but
+     * errors without a line aren't.
+     */
+    @Test
+    public void testDuplicatePosition() {
+        TestErrors errors = new TestErrors();
+
+        errors.WARNING.add(new Position("a", 1), "one");
+        errors.WARNING.add(new Position("a", 1), "two");
+        errors.WARNING.add(new Position("a", 2), "three");
+        errors.ERROR.add(new Position("a", 1), "four");
+        errors.WARNING.add("five");
+        errors.WARNING.add("six");
+
+        final List<TestErrors.Entry> entries = errors.getEntries();
+        Assert.assertEquals(5, entries.size());
+        Assert.assertEquals("one", entries.get(0).getMessage());
+        Assert.assertEquals("three", entries.get(1).getMessage());
+        Assert.assertEquals("four", entries.get(2).getMessage());
+        Assert.assertEquals("five", entries.get(3).getMessage());
+        Assert.assertEquals("six", entries.get(4).getMessage());
+        Assert.assertEquals(1, errors.WARNING.getDroppedCount());
+        Assert.assertEquals(6, errors.getEntryCount());
+    }
+
+    /**
+     * Test that only the first few errors of a category are kept, and that the rest are
+     * counted when printing.
+     */
+    @Test
+    public void testMaxEntries() {
+        TestErrors errors = new TestErrors();
+        errors.setMaxEntriesPerCategory(3);
+
+        for (int i = 0; i < 10; i++) {
+            errors.WARNING.add("w" + i);
+        }
+        errors.ERROR.add("e");
+
+        Assert.assertEquals(4, errors.getEntries().size());
+        Assert.assertEquals(7, errors.WARNING.getDroppedCount());
+        Assert.assertTrue(errors.hadError());
+
+        final String printed = errors.getErrorMessages();
+        Assert.assertTrue(printed, printed.contains("w2"));
+        Assert.assertFalse(printed, printed.contains("w3"));
+        Assert.assertTrue(printed, printed.contains("[warning 2] 7 more not shown"));
+    }
+
+    /**
+     * Test that a dropped error still counts towards hadError.
+     */
+    @Test
+    public void testDroppedErrorCounts() {
+        TestErrors errors = new TestErrors();
+        errors.setMaxEntriesPerCategory(0);
+
+        errors.ERROR.add("e");
+
+        Assert.assertEquals(0, errors.getEntries().size());
+        Assert.assertTrue(errors.hadError());
+    }
+
+    /**
+     * Test that fatal errors are kept even when their category is full.
+     */
+    @Test
+    public void testFatalKept() {
+        TestErrors errors = new TestErrors();
+        errors.setMaxEntriesPerCategory(1);
+        errors.ERROR.add(new Position("a", 1), "first");
+
+        boolean exceptionThrown = false;
+        try {
+            errors.ERROR.fatal(new Position("a", 1), "fatal");
+        } catch (TestErrors.FatalException ex) {
+            exceptionThrown = true;
+        }
+
+        Assert.assertTrue(exceptionThrown);
+        Assert.assertEquals(2, errors.getEntries().size());
+        Assert.assertEquals("fatal", errors.getEntries().get(1).getMessage());
+    }
+
+    /**
+     * Test that a message Supplier is only called when the message is needed, and only
+     * once.
+     */
+    @Test
+    public void testLazyMessage() {
+        TestErrors errors = new TestErrors();
+        errors.setMaxEntriesPerCategory(1);
+        final int[] calls = new int[1];
+
+        errors.WARNING.add(() -> {
+            calls[0]++;
+            return "kept";
+        });
+        errors.WARNING.add(() -> {
+            calls[0]++;
+            return "dropped";
+        });
+        Assert.assertEquals(0, calls[0]);
+
+        Assert.assertEquals("kept", errors.getEntries().get(0).getMessage());
+        Assert.assertEquals("kept", errors.getEntries().get(0).getMessage());
+        Assert.assertTrue(errors.getErrorMessages().contains("kept"));
+        Assert.assertEquals(1, calls[0]);
+    }
+
+    /**
+     * Test that an Errors object that had errors added can be garbage collected once
+     * it's dropped, even though the thread that added them is still running.
+     */
+    @Test
+    public void testCollectable() throws InterruptedException {
+        final WeakReference<TestErrors> ref = addErrorAndDrop();
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(ref.get());
+    }
+
+    private static WeakReference<TestErrors> addErrorAndDrop() {
+        final TestErrors errors = new TestErrors();
+        errors.WARNING.add(new Position("a", 1), "w");
+        errors.ERROR.add(() -> "e");
+        return new WeakReference(errors);
+    }
 }
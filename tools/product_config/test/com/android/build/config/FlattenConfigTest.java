@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class FlattenConfigTest {
+
+    /**
+     * a.mk inherits b.mk and c.mk, which both inherit d.mk. 'bPackage' is the
+     * package that b.mk adds.
+     */
+    private static GenericConfig makeConfig(String bPackage) {
+        final GenericConfig config = new GenericConfig();
+        config.setPhase("PRODUCTS");
+        config.setRootNodes(Arrays.asList("a.mk"));
+        config.addProductVar("PRODUCT_PACKAGES", VarType.LIST);
+        config.addProductVar("PRODUCT_NAME", VarType.SINGLE);
+        config.addProductVar("PRODUCT_MODEL", VarType.SINGLE);
+
+        final GenericConfig.ConfigFile a = new GenericConfig.ConfigFile("a.mk");
+        a.addStatement(new GenericConfig.Assign("PRODUCT_NAME",
+                new Str(new Position("a.mk", 1), "a")));
+        a.addStatement(new GenericConfig.Inherit(new Str(new Position("a.mk", 2), "b.mk")));
+        a.addStatement(new GenericConfig.Inherit(new Str(new Position("a.mk", 3), "c.mk")));
+        config.addConfigFile(a);
+
+        final GenericConfig.ConfigFile b = new GenericConfig.ConfigFile("b.mk");
+        b.addStatement(new GenericConfig.Assign("PRODUCT_PACKAGES", Arrays.asList(
+                new Str(new Position("b.mk", 1), bPackage))));
+        b.addStatement(new GenericConfig.Inherit(new Str(new Position("b.mk", 2), "d.mk")));
+        config.addConfigFile(b);
+
+        final GenericConfig.ConfigFile c = new GenericConfig.ConfigFile("c.mk");
+        c.addStatement(new GenericConfig.Inherit(new Str(new Position("c.mk", 1), "d.mk")));
+        c.addStatement(new GenericConfig.Assign("PRODUCT_MODEL",
+                new Str(new Position("c.mk", 2), "model")));
+        config.addConfigFile(c);
+
+        final GenericConfig.ConfigFile d = new GenericConfig.ConfigFile("d.mk");
+        d.addStatement(new GenericConfig.Assign("PRODUCT_PACKAGES", Arrays.asList(
+                new Str(new Position("d.mk", 1), "d1"),
+                new Str(new Position("d.mk", 1), "d2"))));
+        config.addConfigFile(d);
+
+        return config;
+    }
+
+    /**
+     * Return a config with no files yet, whose root is 'root'.
+     */
+    private static GenericConfig makeGraph(String root) {
+        final GenericConfig config = new GenericConfig();
+        config.setPhase("PRODUCTS");
+        config.setRootNodes(Arrays.asList(root));
+        config.addProductVar("PRODUCT_PACKAGES", VarType.LIST);
+        config.addProductVar("PRODUCT_MODEL", VarType.SINGLE);
+        return config;
+    }
+
+    /**
+     * Add 'name' to 'config'. It adds p-'name' to PRODUCT_PACKAGES, sets PRODUCT_MODEL
+     * and FOO to 'name', and then inherits each of 'children'.
+     */
+    private static void addFile(GenericConfig config, String name, String... children) {
+        final GenericConfig.ConfigFile file = new GenericConfig.ConfigFile(name);
+        file.addStatement(new GenericConfig.Assign("PRODUCT_PACKAGES", Arrays.asList(
+                new Str(new Position(name, 1), "p-" + name))));
+        file.addStatement(new GenericConfig.Assign("PRODUCT_MODEL",
+                new Str(new Position(name, 2), name)));
+        file.addStatement(new GenericConfig.Assign("FOO", new Str(new Position(name, 3), name)));
+        int line = 4;
+        for (String child: children) {
+            file.addStatement(new GenericConfig.Inherit(
+                    new Str(new Position(name, line++), child)));
+        }
+        config.addConfigFile(file);
+    }
+
+    /**
+     * r.mk inherits x.mk and y.mk, which both inherit s.mk. s.mk inherits t.mk, which
+     * inherits s.mk again, and missing.mk, which doesn't exist.
+     */
+    private static GenericConfig makeCycleGraph() {
+        final GenericConfig config = makeGraph("r.mk");
+        addFile(config, "r.mk", "x.mk", "y.mk");
+        addFile(config, "x.mk", "s.mk");
+        addFile(config, "y.mk", "s.mk");
+        addFile(config, "s.mk", "t.mk", "missing.mk");
+        addFile(config, "t.mk", "s.mk");
+        return config;
+    }
+
+    private static void assertValues(FlatConfig config, String... namesAndValues) {
+        final TreeMap<String, String> expected = new TreeMap();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            expected.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        expected.put("PRODUCT_ENFORCE_PACKAGES_EXIST", "Value(mStr=\"\")");
+        expected.put("PRODUCT_ENFORCE_PACKAGES_EXIST_ALLOW_LIST", "Value(mStr=\"\")");
+        Assert.assertEquals(expected, describe(config));
+    }
+
+    private static Map<String, String> describe(FlatConfig config) {
+        final TreeMap<String, String> result = new TreeMap();
+        for (Map.Entry<String, Value> entry: config.getValues().entrySet()) {
+            result.put(entry.getKey(), Value.debugString(entry.getValue()));
+        }
+        return result;
+    }
+
+    @Test
+    public void testFindChangedVars() {
+        final GenericConfig before = makeConfig("b1");
+        Assert.assertEquals(new HashSet(), FlattenConfig.findChangedVars(before,
+                makeConfig("b1")));
+        Assert.assertEquals(new HashSet(Arrays.asList("PRODUCT_PACKAGES")),
+                FlattenConfig.findChangedVars(before, makeConfig("b2")));
+
+        // A new inherit changes the graph.
+        final GenericConfig inherit = makeConfig("b1");
+        inherit.getFiles().get("c.mk").addStatement(
+                new GenericConfig.Inherit(new Str(new Position("c.mk", 3), "b.mk")));
+        Assert.assertNull(FlattenConfig.findChangedVars(before, inherit));
+    }
+
+    @Test
+    public void testIncrementalMatchesFull() {
+        final Errors errors = new Errors();
+        final GenericConfig before = makeConfig("b1");
+        final FlatConfig beforeFlat = FlattenConfig.flatten(errors, before);
+
+        final GenericConfig after = makeConfig("b2");
+        final FlatConfig full = FlattenConfig.flatten(errors, after);
+        final FlatConfig incremental = FlattenConfig.flattenIncremental(errors, after,
+                before, beforeFlat);
+
+        Assert.assertEquals(describe(full), describe(incremental));
+        Assert.assertEquals(Arrays.asList(new Str("b2"), new Str("d1"), new Str("d2")),
+                incremental.getValues().get("PRODUCT_PACKAGES").getList());
+        Assert.assertEquals("", TestErrors.getErrorMessages(errors));
+
+        final FlatConfig parallel = FlattenConfig.flattenIncremental(errors, after,
+                before, beforeFlat, true, Profiler.DISABLED);
+        Assert.assertEquals(describe(full), describe(parallel));
+    }
+
+    /**
+     * Test a subtree that is reached twice, through a diamond. The second visit is
+     * skipped by the INHERITS_FROM pass, and the result is what visiting it again
+     * gives.
+     */
+    @Test
+    public void testMemoizedDiamond() {
+        final GenericConfig config = makeGraph("a.mk");
+        addFile(config, "a.mk", "b.mk", "c.mk");
+        addFile(config, "b.mk", "d.mk");
+        addFile(config, "c.mk", "d.mk");
+        addFile(config, "d.mk", "e.mk");
+        addFile(config, "e.mk");
+
+        final Errors errors = new Errors();
+        final FlatConfig flat = FlattenConfig.flatten(errors, config);
+
+        assertValues(flat,
+                "FOO", "Value(mStr=\"c.mk\")",
+                "PRODUCTS", "Value(mStr=\"a.mk\")",
+                "PRODUCTS.a.mk.INHERITS_FROM", "Value(mStr=\"b.mk c.mk\")",
+                "PRODUCTS.b.mk.INHERITS_FROM", "Value(mStr=\"d.mk\")",
+                "PRODUCTS.c.mk.INHERITS_FROM", "Value(mStr=\"d.mk\")",
+                "PRODUCTS.d.mk.INHERITS_FROM", "Value(mStr=\"e.mk\")",
+                "PRODUCT_MODEL", "Value(mStr=\"a.mk\")",
+                "PRODUCT_PACKAGES",
+                "Value(mList=[ \"p-a.mk\" \"p-b.mk\" \"p-d.mk\" \"p-e.mk\" \"p-c.mk\" ])");
+        Assert.assertEquals("", TestErrors.getErrorMessages(errors));
+    }
+
+    /**
+     * Test a subtree that is reached twice and has errors in it. It isn't memoized, so
+     * the errors are reported on each visit, the same as without the memo.
+     */
+    @Test
+    public void testMemoizedSubtreeWithErrors() {
+        final Errors errors = new Errors();
+        final FlatConfig flat = FlattenConfig.flatten(errors, makeCycleGraph());
+
+        assertValues(flat,
+                "FOO", "Value(mStr=\"y.mk\")",
+                "PRODUCTS", "Value(mStr=\"r.mk\")",
+                "PRODUCTS.r.mk.INHERITS_FROM", "Value(mStr=\"x.mk y.mk\")",
+                "PRODUCTS.s.mk.INHERITS_FROM", "Value(mStr=\"missing.mk t.mk\")",
+                "PRODUCTS.t.mk.INHERITS_FROM", "Value(mStr=\"s.mk\")",
+                "PRODUCTS.x.mk.INHERITS_FROM", "Value(mStr=\"s.mk\")",
+                "PRODUCTS.y.mk.INHERITS_FROM", "Value(mStr=\"s.mk\")",
+                "PRODUCT_MODEL", "Value(mStr=\"r.mk\")",
+                "PRODUCT_PACKAGES",
+                "Value(mList=[ \"p-r.mk\" \"p-x.mk\" \"p-s.mk\" \"p-t.mk\" \"p-y.mk\" ])");
+        // missing.mk is reported once by each of the LIST, SINGLE and UNKNOWN passes.
+        // The INHERITS_FROM pass goes through s.mk twice, once from x.mk and once from
+        // y.mk, and reports missing.mk and the cycle both times.
+        Assert.assertEquals(
+                "s.mk:5: [error 8] Unable to find config file: missing.mk\n"
+                + "t.mk:4: [error 9] File is already in the inherit-product stack: s.mk\n"
+                + "[error 8] 4 more not shown, repeated or over the limit of 1000.\n"
+                + "[error 9] 1 more not shown, repeated or over the limit of 1000.\n",
+                TestErrors.getErrorMessages(errors));
+        Assert.assertEquals(7, errors.getEntryCount());
+    }
+
+    /**
+     * Test a missing file under a file that is reached twice. The LIST, SINGLE and
+     * UNKNOWN passes each look b.mk up once, and report missing.mk once.
+     */
+    @Test
+    public void testMissingFileReachedTwice() {
+        final GenericConfig config = makeGraph("a.mk");
+        addFile(config, "a.mk", "b.mk", "c.mk");
+        addFile(config, "b.mk", "missing.mk");
+        addFile(config, "c.mk", "b.mk");
+
+        final Errors errors = new Errors();
+        final FlatConfig flat = FlattenConfig.flatten(errors, config);
+
+        assertValues(flat,
+                "FOO", "Value(mStr=\"c.mk\")",
+                "PRODUCTS", "Value(mStr=\"a.mk\")",
+                "PRODUCTS.a.mk.INHERITS_FROM", "Value(mStr=\"b.mk c.mk\")",
+                "PRODUCTS.b.mk.INHERITS_FROM", "Value(mStr=\"missing.mk\")",
+                "PRODUCTS.c.mk.INHERITS_FROM", "Value(mStr=\"b.mk\")",
+                "PRODUCT_MODEL", "Value(mStr=\"a.mk\")",
+                "PRODUCT_PACKAGES",
+                "Value(mList=[ \"p-a.mk\" \"p-b.mk\" \"p-c.mk\" ])");
+        // Once from each of those passes, and twice from INHERITS_FROM, which goes
+        // through b.mk from a.mk and from c.mk.
+        Assert.assertEquals(
+                "b.mk:4: [error 8] Unable to find config file: missing.mk\n"
+                + "[error 8] 4 more not shown, repeated or over the limit of 1000.\n",
+                TestErrors.getErrorMessages(errors));
+        Assert.assertEquals(5, errors.getEntryCount());
+    }
+
+    /**
+     * Test that running the passes in parallel gives the same values and errors, in the
+     * same order, as running them one after another. The missing file is reported by
+     * each of the LIST, SINGLE and UNKNOWN passes, which are the ones that run in
+     * parallel.
+     */
+    @Test
+    public void testParallelMatchesSerial() {
+        final Errors serialErrors = new Errors();
+        final FlatConfig serial = FlattenConfig.flatten(serialErrors, makeCycleGraph());
+
+        final Errors parallelErrors = new Errors();
+        final FlatConfig parallel = FlattenConfig.flatten(parallelErrors, makeCycleGraph(),
+                true);
+
+        Assert.assertEquals(describe(serial), describe(parallel));
+        Assert.assertEquals(TestErrors.getErrorMessages(serialErrors),
+                TestErrors.getErrorMessages(parallelErrors));
+        Assert.assertEquals(serialErrors.getEntryCount(), parallelErrors.getEntryCount());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MakeConfigTest {
+
+    @Test
+    public void testAddConfigFile() {
+        final MakeConfig config = new MakeConfig();
+        final MakeConfig.ConfigFile a = new MakeConfig.ConfigFile("a.mk");
+        final MakeConfig.ConfigFile b = new MakeConfig.ConfigFile("b.mk");
+        final MakeConfig.ConfigFile a2 = new MakeConfig.ConfigFile(new String("a.mk"));
+
+        Assert.assertNull(config.addConfigFile(a));
+        Assert.assertNull(config.addConfigFile(b));
+        Assert.assertSame(a, config.addConfigFile(a2));
+
+        // Duplicates are still kept in order, but lookups find the first one.
+        Assert.assertEquals(3, config.getConfigFiles().size());
+        Assert.assertSame(a2, config.getConfigFiles().get(2));
+        Assert.assertSame(a, config.getConfigFile("a.mk"));
+        Assert.assertSame(b, config.getConfigFile("b.mk"));
+        Assert.assertNull(config.getConfigFile("c.mk"));
+    }
+
+    @Test
+    public void testManyConfigFiles() {
+        final MakeConfig config = new MakeConfig();
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertNull(config.addConfigFile(new MakeConfig.ConfigFile("f" + i + ".mk")));
+        }
+        Assert.assertEquals("f12345.mk", config.getConfigFile("f12345.mk").getFilename());
+    }
+
+    private static Map<String, Str> vars(Position pos, String... namesAndValues) {
+        final TreeMap<String, Str> result = new TreeMap();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            result.put(namesAndValues[i], new Str(pos, namesAndValues[i + 1]));
+        }
+        return result;
+    }
+
+    @Test
+    public void testBlockDelta() {
+        final Position pos = new Position("a.mk", 1);
+        final MakeConfig.Block before = new MakeConfig.Block(MakeConfig.BlockType.BEFORE);
+        before.setVars(vars(pos, "A", "a", "B", "b", "C", "c"));
+        final MakeConfig.Block inherit = new MakeConfig.Block(MakeConfig.BlockType.INHERIT,
+                before);
+        inherit.setVars(vars(pos, "A", "a", "B", "b2", "D", "d"));
+
+        Assert.assertSame(before, inherit.getPrevious());
+        Assert.assertEquals(vars(pos, "A", "a", "B", "b2", "D", "d"), inherit.getVars());
+        Assert.assertEquals(vars(pos, "B", "b2", "D", "d"), inherit.getChangedVars());
+        Assert.assertEquals(Arrays.asList("C"),
+                Arrays.asList(inherit.getRemovedVars().toArray()));
+        Assert.assertEquals(3, inherit.getVarCount());
+        Assert.assertEquals("a", inherit.getVar("A").toString());
+        Assert.assertNull(inherit.getVar("C"));
+
+        // The same string from somewhere else is still a change.
+        final MakeConfig.Block after = new MakeConfig.Block(MakeConfig.BlockType.AFTER,
+                inherit);
+        after.setVars(inherit.getVars());
+        Assert.assertEquals(0, after.getChangedVars().size());
+        after.addVar("A", new Str(new Position("a.mk", 2), "a"));
+        after.removeVar("D");
+        after.addVar("C", new Str(pos, "c"));
+        Assert.assertEquals(2, after.getVar("A").getPosition().getLine());
+        Assert.assertEquals(Arrays.asList("A", "C"),
+                Arrays.asList(after.getChangedVars().keySet().toArray()));
+        Assert.assertEquals(Arrays.asList("D"),
+                Arrays.asList(after.getRemovedVars().toArray()));
+        Assert.assertEquals(3, after.getVarCount());
+    }
+}
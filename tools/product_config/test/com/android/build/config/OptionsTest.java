@@ -133,5 +133,136 @@ public class OptionsTest {
         Assert.assertEquals("user", options.getVariant());
         Assert.assertFalse(errors.hadWarningOrError());
     }
-}
 
+    @Test
+    public void testStreamDumpConfig() {
+        final Errors errors = new Errors();
+
+        Assert.assertFalse(parse(errors, new String[0]).getStreamDumpConfig());
+
+        final Options options = parse(errors, new String[] {
+                    "--stream_dumpconfig"
+                });
+
+        Assert.assertTrue(options.getStreamDumpConfig());
+        Assert.assertFalse(errors.hadWarningOrError());
+    }
+
+    @Test
+    public void testDumpConfigCache() {
+        final Errors errors = new Errors();
+
+        Assert.assertFalse(parse(errors, new String[0]).getDumpConfigCache());
+
+        final Options options = parse(errors, new String[] {
+                    "--dumpconfig_cache"
+                });
+
+        Assert.assertTrue(options.getDumpConfigCache());
+        Assert.assertFalse(errors.hadWarningOrError());
+    }
+
+    @Test
+    public void testParallelFlatten() {
+        final Errors errors = new Errors();
+
+        Assert.assertFalse(parse(errors, new String[0]).getParallelFlatten());
+
+        final Options options = parse(errors, new String[] {
+                    "--parallel_flatten"
+                });
+
+        Assert.assertTrue(options.getParallelFlatten());
+        Assert.assertFalse(errors.hadWarningOrError());
+    }
+
+    @Test
+    public void testParallelConvert() {
+        final Errors errors = new Errors();
+
+        Assert.assertFalse(parse(errors, new String[0]).getParallelConvert());
+
+        final Options options = parse(errors, new String[] {
+                    "--parallel_convert"
+                });
+
+        Assert.assertTrue(options.getParallelConvert());
+        Assert.assertFalse(errors.hadWarningOrError());
+    }
+
+    @Test
+    public void testProfile() {
+        final Errors errors = new Errors();
+
+        Assert.assertNull(parse(errors, new String[0]).getProfileFile());
+
+        final Options options = parse(errors, new String[] {
+                    "--profile", "out/profile.json"
+                });
+
+        Assert.assertEquals("out/profile.json", options.getProfileFile());
+        Assert.assertFalse(errors.hadWarningOrError());
+    }
+
+    @Test
+    public void testBatch() {
+        final Errors errors = new Errors();
+
+        final Options options = parse(errors, new String[] {
+                    "--batch", "aosp_arm-eng",
+                    "--batch", "aosp_x86_64-userdebug",
+                    "--jobs", "3"
+                });
+
+        Assert.assertFalse(errors.hadWarningOrError());
+        Assert.assertEquals(Options.Action.BATCH, options.getAction());
+        Assert.assertEquals(3, options.getJobs());
+        Assert.assertEquals(2, options.getBatchTargets().size());
+        Assert.assertEquals("aosp_arm", options.getBatchTargets().get(0).getProduct());
+        Assert.assertEquals("eng", options.getBatchTargets().get(0).getVariant());
+
+        final Options target = options.forTarget(options.getBatchTargets().get(1));
+        Assert.assertEquals(Options.Action.DEFAULT, target.getAction());
+        Assert.assertEquals("aosp_x86_64", target.getProduct());
+        Assert.assertEquals("userdebug", target.getVariant());
+    }
+
+    @Test
+    public void testBatchBadTarget() {
+        final Errors errors = new Errors();
+
+        parse(errors, new String[] {
+                    "--batch", "aosp_arm"
+                });
+
+        TestErrors.assertHasEntry(errors.ERROR_COMMAND_LINE, errors);
+    }
+
+    @Test
+    public void testServer() {
+        final Errors errors = new Errors();
+
+        final Options options = parse(errors, new String[] {
+                    "--server"
+                });
+
+        Assert.assertFalse(errors.hadWarningOrError());
+        Assert.assertEquals(Options.Action.SERVER, options.getAction());
+        Assert.assertTrue(options.getDumpConfigCache());
+    }
+
+    @Test
+    public void testClientDoesNotNeedCKati() {
+        final Errors errors = new Errors();
+        final HashMap<String, String> env = new HashMap();
+        env.put("TARGET_PRODUCT", "test_product");
+        env.put("TARGET_BUILD_VARIANT", "user");
+
+        final Options options = Options.parse(errors, new String[] {
+                    "--client"
+                }, env);
+
+        Assert.assertFalse(errors.hadWarningOrError());
+        Assert.assertEquals(Options.Action.CLIENT, options.getAction());
+    }
+}
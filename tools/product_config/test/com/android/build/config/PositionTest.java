@@ -20,6 +20,8 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class PositionTest {
 
@@ -63,6 +65,112 @@ public class PositionTest {
         Assert.assertEquals(Position.NO_LINE, pos.getLine());
     }
 
+    @Test
+    public void testParseMultiDigitLine() {
+        final Position pos = Position.parse("asdf:123");
+
+        Assert.assertEquals("asdf", pos.getFile());
+        Assert.assertEquals(123, pos.getLine());
+    }
+
+    @Test
+    public void testParseLineEndsWithColonAndSpace() {
+        final Position pos = Position.parse("asdf:45: ");
 
+        Assert.assertEquals("asdf", pos.getFile());
+        Assert.assertEquals(45, pos.getLine());
+    }
+
+    @Test
+    public void testParseUnknownFile() {
+        final Position pos = Position.parse("<unknown>:7");
+
+        Assert.assertEquals(null, pos.getFile());
+        Assert.assertEquals(7, pos.getLine());
+    }
+
+    @Test
+    public void testParseLineTooBig() {
+        final Position pos = Position.parse("asdf:99999999999");
+
+        Assert.assertEquals("asdf", pos.getFile());
+        Assert.assertEquals(Position.NO_LINE, pos.getLine());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        Assert.assertSame(Position.NO_POSITION, Position.parse("asdf:1x"));
+        Assert.assertSame(Position.NO_POSITION, Position.parse("asdf: 1"));
+        Assert.assertSame(Position.NO_POSITION, Position.parse("asdf:1:2"));
+    }
+
+    /**
+     * Check parse() against the regex it replaced, with (\d)* fixed to (\d*) so that
+     * it keeps the whole line number.
+     */
+    @Test
+    public void testParseMatchesRegex() {
+        final Pattern regex = Pattern.compile("([^:]*)(?::(\\d*))?:?\\s*");
+        final String[] inputs = new String[] {
+            "", " ", ":", "::", ":::", "a", "a ", "a b", "a:", "a::", "a: ", "a:\t\n",
+            "a :1", "a:1", "a:12", "a:12:", "a:12: ", "a:12 ", "a:12 :", "a:: ", "a:x",
+            ":1", ":1:", "<unknown>", "<unknown>:3: ", "a/b.mk:1234:  ",
+        };
+        for (String input: inputs) {
+            final Matcher m = regex.matcher(input);
+            Position expected = Position.NO_POSITION;
+            if (m.matches()) {
+                String file = m.group(1);
+                if (file.length() == 0 || Position.UNKNOWN.equals(file)) {
+                    file = null;
+                }
+                final String line = m.group(2);
+                expected = new Position(file, line == null || line.length() == 0
+                        ? Position.NO_LINE : Integer.parseInt(line));
+            }
+            Assert.assertEquals("\"" + input + "\"", expected, Position.parse(input));
+        }
+    }
+
+    @Test
+    public void testEquals() {
+        Assert.assertEquals(new Position("asdf", 1), new Position("asdf", 1));
+        Assert.assertEquals(new Position("asdf", 1).hashCode(),
+                new Position("asdf", 1).hashCode());
+        Assert.assertNotEquals(new Position("asdf", 1), new Position("asdf", 2));
+        Assert.assertNotEquals(new Position("asdf", 1), new Position("qwer", 1));
+        Assert.assertEquals(Position.NO_POSITION, new Position());
+        Assert.assertNotEquals(Position.NO_POSITION, new Position("asdf"));
+    }
+
+    @Test
+    public void testPool() {
+        final PositionPool pool = new PositionPool();
+        final Position pos = pool.get("asdf", 1);
+
+        Assert.assertSame(pos, pool.get(new String("asdf"), 1));
+        Assert.assertSame(pos, pool.intern(new Position("asdf", 1)));
+        Assert.assertSame(pos.getFile(), pool.get(new String("asdf"), 2).getFile());
+        Assert.assertNotSame(pos, pool.get("asdf", 2));
+        Assert.assertSame(Position.NO_POSITION, pool.get(null, Position.NO_LINE));
+        Assert.assertSame(Position.NO_POSITION, pool.intern(Position.parse("")));
+        Assert.assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void testPoolParse() {
+        final PositionPool pool = new PositionPool();
+        final Position pos = pool.parse("asdf:12");
+
+        Assert.assertEquals(new Position("asdf", 12), pos);
+        Assert.assertSame(pos, pool.parse(new String("asdf:12")));
+        Assert.assertSame(pos, pool.get("asdf", 12));
+        Assert.assertSame(Position.NO_POSITION, pool.parse(""));
+    }
+
+    @Test
+    public void testStrSharesNoPosition() {
+        Assert.assertSame(Position.NO_POSITION, new Str("a").getPosition());
+    }
 }
 
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+public class ProfilerTest {
+
+    @Test
+    @SuppressWarnings("try")
+    public void testPhasesAndCounters() {
+        final Profiler profiler = new Profiler();
+        try (Profiler.Phase outer = profiler.start("outer")) {
+            try (Profiler.Phase inner = profiler.start("inner")) {
+                profiler.count("words", 3);
+            }
+            profiler.count("words", 4);
+        }
+
+        final List<Profiler.Phase> phases = profiler.getPhases();
+        Assert.assertEquals(2, phases.size());
+        Assert.assertEquals("inner", phases.get(0).getName());
+        Assert.assertEquals("outer", phases.get(1).getName());
+        Assert.assertTrue(phases.get(1).getWallNanos() >= phases.get(0).getWallNanos());
+        Assert.assertEquals(Long.valueOf(7), profiler.getCounters().get("words"));
+
+        final StringWriter out = new StringWriter();
+        profiler.write(new PrintWriter(out));
+        final String json = out.toString();
+        Assert.assertTrue(json.contains("\"traceEvents\""));
+        Assert.assertTrue(json.contains("{\"name\": \"inner\", \"ph\": \"X\""));
+        Assert.assertTrue(json.contains("\"words\": 7"));
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void testDisabled() {
+        final Profiler profiler = Profiler.DISABLED;
+        try (Profiler.Phase phase = profiler.start("phase")) {
+            profiler.count("words", 3);
+        }
+        Assert.assertEquals(0, profiler.getPhases().size());
+        Assert.assertEquals(0, profiler.getCounters().size());
+    }
+
+    @Test
+    public void testQuote() {
+        Assert.assertEquals("\"a\\\"b\\\\c\\u000a\"", Profiler.quote("a\"b\\c\n"));
+    }
+}
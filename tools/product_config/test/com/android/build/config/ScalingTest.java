@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Runs the pipeline on output from DumpConfigGenerator.
+ */
+public class ScalingTest {
+
+    private static FlatConfig runPipeline(Errors errors, byte[] csv)
+            throws CsvParser.ParseException, IOException {
+        final Map<String, MakeConfig> makeConfigs = DumpConfigParser.parse(errors, "test",
+                ByteBuffer.wrap(csv));
+        final GenericConfig generic = new ConvertMakeToGenericConfig(errors).convert(makeConfigs);
+        return FlattenConfig.flatten(errors, generic);
+    }
+
+    /**
+     * Run the pipeline on 'csv', and return the number of dumpconfig blocks, generic
+     * statements and flattened list words, the same things Main counts with --profile.
+     */
+    private static long[] countSizes(byte[] csv) throws CsvParser.ParseException, IOException {
+        final Errors errors = new Errors();
+        final Map<String, MakeConfig> makeConfigs = DumpConfigParser.parse(errors, "test",
+                ByteBuffer.wrap(csv));
+        final GenericConfig generic = new ConvertMakeToGenericConfig(errors).convert(makeConfigs);
+        final FlatConfig flat = FlattenConfig.flatten(errors, generic);
+        Assert.assertFalse(TestErrors.getErrorMessages(errors), errors.hadWarningOrError());
+
+        final long[] sizes = new long[3];
+        for (MakeConfig makeConfig: makeConfigs.values()) {
+            for (MakeConfig.ConfigFile file: makeConfig.getConfigFiles()) {
+                sizes[0] += file.getBlocks().size();
+            }
+        }
+        for (GenericConfig.ConfigFile file: generic.getFiles().values()) {
+            sizes[1] += file.getStatements().size();
+        }
+        for (Value value: flat.getValues().values()) {
+            sizes[2] += value.getListSize();
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testGeneratedOutputIsValid() throws CsvParser.ParseException, IOException {
+        final String csv = new DumpConfigGenerator()
+                .setDepth(3)
+                .setFanOut(3)
+                .setDiamondRatio(0.3)
+                .setVarCount(10)
+                .setListLength(4)
+                .generate();
+        Assert.assertEquals(csv, new DumpConfigGenerator()
+                .setDepth(3)
+                .setFanOut(3)
+                .setDiamondRatio(0.3)
+                .setVarCount(10)
+                .setListLength(4)
+                .generate());
+
+        final Errors errors = new Errors();
+        final FlatConfig flat = runPipeline(errors, csv.getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(TestErrors.getErrorMessages(errors), errors.hadWarningOrError());
+        Assert.assertEquals(10, flat.getProductVars().size());
+        Assert.assertEquals("device/synthetic/level0/product0.mk",
+                flat.getValues().get("PRODUCTS").getStr().toString());
+    }
+
+    /**
+     * Make sure that each step's output grows linearly with its input. Going from depth
+     * 7 to depth 9 makes four times as many files, so anything quadratic would grow
+     * about sixteen times. These are counts, not times, so they are the same every run.
+     */
+    @Test
+    public void testRoughlyLinear() throws CsvParser.ParseException, IOException {
+        final DumpConfigGenerator generator = new DumpConfigGenerator()
+                .setFanOut(2)
+                .setDiamondRatio(0)
+                .setVarCount(10)
+                .setListLength(5);
+        final byte[] small = generator.setDepth(7).generate().getBytes(StandardCharsets.UTF_8);
+        final byte[] large = generator.setDepth(9).generate().getBytes(StandardCharsets.UTF_8);
+        final long[] smallSizes = countSizes(small);
+        final long[] largeSizes = countSizes(large);
+
+        final String[] names = { "dumpconfig blocks", "generic statements", "flat words" };
+        final double inputRatio = (double)large.length / small.length;
+        for (int i = 0; i < names.length; i++) {
+            final double ratio = (double)largeSizes[i] / smallSizes[i];
+            Assert.assertTrue("Input grew " + inputRatio + "x but " + names[i] + " grew "
+                    + ratio + "x", ratio < inputRatio * 1.5);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SnapshotTest {
+
+    private static SnapshotReader roundTrip(SnapshotWriter writer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return new SnapshotReader(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    @Test
+    public void testPrimitives() throws IOException {
+        final SnapshotWriter writer = new SnapshotWriter();
+        writer.writeVarint(0);
+        writer.writeVarint(127);
+        writer.writeVarint(128);
+        writer.writeVarint(Integer.MAX_VALUE);
+        writer.writeString("a");
+        writer.writeString(null);
+        writer.writeString("\u00e9\u4e2d");
+        writer.writeString("a");
+        writer.writeStr(new Str(new Position("a.mk", 12), "val"));
+        writer.writeStr(new Str("no position"));
+        writer.writeStr(null);
+
+        final SnapshotReader reader = roundTrip(writer);
+        Assert.assertEquals(0, reader.readVarint());
+        Assert.assertEquals(127, reader.readVarint());
+        Assert.assertEquals(128, reader.readVarint());
+        Assert.assertEquals(Integer.MAX_VALUE, reader.readVarint());
+        final String a = reader.readString();
+        Assert.assertEquals("a", a);
+        Assert.assertNull(reader.readString());
+        Assert.assertEquals("\u00e9\u4e2d", reader.readString());
+        Assert.assertSame(a, reader.readString());
+
+        final Str str = reader.readStr();
+        Assert.assertEquals("val", str.toString());
+        Assert.assertEquals("a.mk", str.getPosition().getFile());
+        Assert.assertEquals(12, str.getPosition().getLine());
+
+        final Str noPosition = reader.readStr();
+        Assert.assertEquals("no position", noPosition.toString());
+        Assert.assertNull(noPosition.getPosition().getFile());
+        Assert.assertEquals(Position.NO_LINE, noPosition.getPosition().getLine());
+
+        Assert.assertNull(reader.readStr());
+        Assert.assertTrue(reader.isAtEnd());
+    }
+
+    private static Map<String, MakeConfig> makeConfigs() {
+        final MakeConfig config = new MakeConfig();
+        config.setPhase("PRODUCTS");
+        config.setRootNodes(Arrays.asList("device/a.mk"));
+        config.addProductVar("PRODUCT_PACKAGES", VarType.LIST);
+        config.addProductVar("PRODUCT_NAME", VarType.SINGLE);
+        config.getInitialVariables().put("X", new Str(new Position("<env>"), "1"));
+
+        final MakeConfig.ConfigFile file = new MakeConfig.ConfigFile("device/a.mk");
+        final MakeConfig.Block before = new MakeConfig.Block(MakeConfig.BlockType.BEFORE);
+        before.addVar("PRODUCT_NAME", new Str(new Position("device/a.mk", 3), "a"));
+        file.addBlock(before);
+        final MakeConfig.Block inherit = new MakeConfig.Block(MakeConfig.BlockType.INHERIT);
+        inherit.setInheritedFile(new Str(new Position("device/a.mk", 4), "device/b.mk"));
+        file.addBlock(inherit);
+        config.addConfigFile(file);
+
+        final HashMap<String, MakeConfig> configs = new HashMap();
+        configs.put("PRODUCTS", config);
+        return configs;
+    }
+
+    @Test
+    public void testMakeConfig() throws IOException {
+        final Map<String, MakeConfig> configs = makeConfigs();
+        final MakeConfig config = configs.get("PRODUCTS");
+
+        final SnapshotWriter writer = new SnapshotWriter();
+        writer.writeMakeConfigs(configs);
+        final Map<String, MakeConfig> result = roundTrip(writer).readMakeConfigs();
+
+        Assert.assertEquals(1, result.size());
+        final MakeConfig read = result.get("PRODUCTS");
+        Assert.assertEquals("PRODUCTS", read.getPhase());
+        Assert.assertEquals(Arrays.asList("device/a.mk"), read.getRootNodes());
+        Assert.assertEquals(config.getProductVars(), read.getProductVars());
+        Assert.assertEquals("<env>",
+                read.getInitialVariables().get("X").getPosition().getFile());
+        Assert.assertEquals(0, read.getFinalVariables().size());
+
+        Assert.assertEquals(1, read.getConfigFiles().size());
+        final MakeConfig.ConfigFile readFile = read.getConfigFiles().get(0);
+        Assert.assertEquals("device/a.mk", readFile.getFilename());
+        Assert.assertEquals(2, readFile.getBlocks().size());
+        final MakeConfig.Block readBefore = readFile.getBlocks().get(0);
+        Assert.assertEquals(MakeConfig.BlockType.BEFORE, readBefore.getBlockType());
+        Assert.assertNull(readBefore.getInheritedFile());
+        Assert.assertEquals(3, readBefore.getVar("PRODUCT_NAME").getPosition().getLine());
+        final MakeConfig.Block readInherit = readFile.getBlocks().get(1);
+        Assert.assertEquals(MakeConfig.BlockType.INHERIT, readInherit.getBlockType());
+        Assert.assertEquals("device/b.mk", readInherit.getInheritedFile().toString());
+        Assert.assertEquals(0, readInherit.getVars().size());
+    }
+
+    @Test
+    public void testBadHeader() {
+        try {
+            new SnapshotReader(ByteBuffer.wrap(new byte[] { 'x', 'y', 'z', 0, 1, 0 }));
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+
+        try {
+            new SnapshotReader(ByteBuffer.wrap(new byte[] { 'P', 'C' }));
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+    }
+
+    /**
+     * Return a reader for a snapshot with no strings, followed by 'body'.
+     */
+    private static SnapshotReader readerWithBody(int... body) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SnapshotWriter().writeTo(out);
+        for (int b: body) {
+            out.write(b);
+        }
+        return new SnapshotReader(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    @Test
+    public void testBadVarints() throws IOException {
+        // The largest varint that's allowed, followed by the same with the sign bit set.
+        final SnapshotReader reader = readerWithBody(0xff, 0xff, 0xff, 0xff, 0x07,
+                0xff, 0xff, 0xff, 0xff, 0x0f);
+        Assert.assertEquals(Integer.MAX_VALUE, reader.readVarint());
+        try {
+            reader.readVarint();
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+
+        // -1 as a string index, a length and a count.
+        final int[] minusOne = new int[] { 0xff, 0xff, 0xff, 0xff, 0x0f };
+        try {
+            readerWithBody(minusOne).readString();
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+        try {
+            readerWithBody(minusOne).readBytes();
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+        try {
+            readerWithBody(minusOne).readStrList();
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+
+        // A count that's more than the rest of the snapshot could hold.
+        try {
+            readerWithBody(0xff, 0xff, 0xff, 0xff, 0x07, 0).readStrList();
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+
+        // A string table with -1 strings, in place of the count of 0 at the end of the
+        // header.
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new SnapshotWriter().writeTo(header);
+        final byte[] bytes = header.toByteArray();
+        final byte[] badCount = Arrays.copyOf(bytes, bytes.length + 4);
+        for (int i = 0; i < minusOne.length; i++) {
+            badCount[bytes.length - 1 + i] = (byte)minusOne[i];
+        }
+        try {
+            new SnapshotReader(ByteBuffer.wrap(badCount));
+            throw new RuntimeException("Expected FormatException");
+        } catch (SnapshotReader.FormatException ex) {
+            // good
+        }
+    }
+
+    /**
+     * Test that a damaged dumpconfig cache is ignored, rather than crashing.
+     */
+    @Test
+    public void testCorruptDumpConfigCache() throws IOException {
+        final File tmp = File.createTempFile("dumpconfig", ".cache");
+        try {
+            final DumpConfigCache cache = new DumpConfigCache(tmp, "key");
+            Assert.assertTrue(cache.save(makeConfigs()));
+            Assert.assertNotNull(cache.load());
+            final byte[] good = Files.readAllBytes(tmp.toPath());
+
+            for (int length = 0; length < good.length; length++) {
+                Files.write(tmp.toPath(), Arrays.copyOf(good, length));
+                Assert.assertNull(cache.load());
+            }
+
+            // A negative number of input files, and then a negative number of configs.
+            for (int prefix = 0; prefix < 2; prefix++) {
+                final SnapshotWriter writer = new SnapshotWriter();
+                writer.writeString("key");
+                for (int i = 0; i < prefix; i++) {
+                    writer.writeVarint(0);
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writer.writeTo(out);
+                out.write(new byte[] { -1, -1, -1, -1, 0x0f });
+                Files.write(tmp.toPath(), out.toByteArray());
+                Assert.assertNull(cache.load());
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testGenericConfigFile() throws IOException {
+        final GenericConfig config = new GenericConfig();
+        config.setPhase("PRODUCTS");
+        config.setRootNodes(Arrays.asList("device/a.mk"));
+        config.addProductVar("PRODUCT_PACKAGES", VarType.LIST);
+
+        final GenericConfig.ConfigFile file = new GenericConfig.ConfigFile("device/a.mk");
+        final Position pos = new Position("device/a.mk", 7);
+        file.addStatement(new GenericConfig.Assign("PRODUCT_PACKAGES", Arrays.asList(
+                new Str(pos, "a"), new Str(pos, ""), new Str(pos, "b"))));
+        file.addStatement(new GenericConfig.Inherit(new Str(pos, "device/b.mk")));
+        config.addConfigFile(file);
+        config.addConfigFile(new GenericConfig.ConfigFile("device/b.mk"));
+
+        final File tmp = File.createTempFile("generic", ".snapshot");
+        try {
+            SnapshotWriter.write(tmp, config);
+            final GenericConfig read = SnapshotReader.readGenericConfig(tmp);
+
+            Assert.assertEquals("PRODUCTS", read.getPhase());
+            Assert.assertEquals(VarType.LIST, read.getVarType("PRODUCT_PACKAGES"));
+            Assert.assertEquals(config.getFiles().keySet(), read.getFiles().keySet());
+
+            final List<GenericConfig.Statement> statements
+                    = read.getFiles().get("device/a.mk").getStatements();
+            Assert.assertEquals(2, statements.size());
+            final GenericConfig.Assign assign = (GenericConfig.Assign)statements.get(0);
+            Assert.assertEquals("PRODUCT_PACKAGES", assign.getName());
+            Assert.assertEquals(Arrays.asList(new Str("a"), new Str(""), new Str("b")),
+                    assign.getValue());
+            Assert.assertEquals(7, assign.getValue().get(2).getPosition().getLine());
+            final GenericConfig.Inherit inherit = (GenericConfig.Inherit)statements.get(1);
+            Assert.assertEquals("device/b.mk", inherit.getFilename().toString());
+            Assert.assertEquals("device/a.mk", inherit.getFilename().getPosition().getFile());
+            Assert.assertEquals(0, read.getFiles().get("device/b.mk").getStatements().size());
+
+            // The wrong kind of config is rejected.
+            try {
+                SnapshotReader.readFlatConfig(tmp);
+                throw new RuntimeException("Expected FormatException");
+            } catch (SnapshotReader.FormatException ex) {
+                // good
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testFlatConfigFile() throws IOException {
+        final FlatConfig config = new FlatConfig();
+        config.setPhase("PRODUCTS");
+        config.setRootNodes(Arrays.asList("device/a.mk"));
+        final Position pos = new Position("device/a.mk", 3);
+        config.getValues().put("PRODUCT_PACKAGES", new Value(Arrays.asList(
+                new Str(pos, "a"), new Str(pos, "b"))));
+        config.getValues().put("PRODUCT_NAME", new Value(VarType.SINGLE, new Str(pos, "a")));
+        config.getValues().put("OTHER", new Value(VarType.UNKNOWN));
+
+        final File tmp = File.createTempFile("flat", ".snapshot");
+        try {
+            SnapshotWriter.write(tmp, config);
+            final FlatConfig read = SnapshotReader.readFlatConfig(tmp);
+
+            Assert.assertEquals(config.getValues().keySet(), read.getValues().keySet());
+            final Value list = read.getValues().get("PRODUCT_PACKAGES");
+            Assert.assertEquals(VarType.LIST, list.getVarType());
+            Assert.assertEquals(Arrays.asList(new Str("a"), new Str("b")), list.getList());
+            final Value single = read.getValues().get("PRODUCT_NAME");
+            Assert.assertEquals(VarType.SINGLE, single.getVarType());
+            Assert.assertNull(single.getList());
+            Assert.assertEquals("a", single.getStr().toString());
+            Assert.assertEquals(3, single.getStr().getPosition().getLine());
+            Assert.assertEquals(VarType.UNKNOWN, read.getValues().get("OTHER").getVarType());
+        } finally {
+            tmp.delete();
+        }
+    }
+}
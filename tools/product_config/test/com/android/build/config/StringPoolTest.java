@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StringPoolTest {
+
+    @Test
+    public void testInternRange() {
+        final StringPool pool = new StringPool();
+        final char[] chars = "xxabcyyabc".toCharArray();
+
+        final String first = pool.intern(chars, 2, 3);
+        final String second = pool.intern(chars, 7, 3);
+
+        Assert.assertEquals("abc", first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testEmpty() {
+        final StringPool pool = new StringPool();
+
+        Assert.assertEquals("", pool.intern(new char[0], 0, 0));
+        Assert.assertSame(pool.intern(""), pool.intern(new char[4], 2, 0));
+    }
+
+    @Test
+    public void testInternStringMatchesRange() {
+        final StringPool pool = new StringPool();
+        final String s = new String("hello");
+
+        Assert.assertSame(s, pool.intern(s));
+        Assert.assertSame(s, pool.intern("hello".toCharArray(), 0, 5));
+    }
+
+    @Test
+    public void testGrow() {
+        final StringPool pool = new StringPool();
+        final String[] strings = new String[10000];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = pool.intern(("s" + i).toCharArray(), 0, ("s" + i).length());
+        }
+
+        Assert.assertEquals(strings.length, pool.size());
+        for (int i = 0; i < strings.length; i++) {
+            Assert.assertSame(strings[i], pool.intern("s" + i));
+        }
+    }
+}
@@ -39,10 +39,20 @@ public class TestRunner {
                         System.out.println(failure.getTrace());
                     }
                 });
-        Result result = junit.run(CsvParserTest.class,
+        Result result = junit.run(ConvertMakeToGenericConfigTest.class,
+                                  CsvParserTest.class,
+                                  DumpConfigParserTest.class,
                                   ErrorReporterTest.class,
+                                  FlattenConfigTest.class,
+                                  MakeConfigTest.class,
                                   OptionsTest.class,
-                                  PositionTest.class);
+                                  PositionTest.class,
+                                  ProfilerTest.class,
+                                  ScalingTest.class,
+                                  SnapshotTest.class,
+                                  StringPoolTest.class,
+                                  WhitespaceTokenizerTest.class,
+                                  WordListTest.class);
         if (!result.wasSuccessful()) {
             System.out.println("\n*** FAILED ***");
         }
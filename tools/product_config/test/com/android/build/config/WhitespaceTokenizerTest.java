@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class WhitespaceTokenizerTest {
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    private static final String[] INPUTS = new String[] {
+        "", " ", "  \t\n ", "a", " a ", "a b", "a  b", "a\tb\nc", " a b c ",
+        "a \\\n  b", "\u0001a\u0001", "a\u0001 b", "a\u000Bb\fc\rd", "a\u00A0b",
+    };
+
+    private static List<String> split(String str) {
+        final ArrayList<String> result = new ArrayList();
+        final WhitespaceTokenizer words = new WhitespaceTokenizer(str);
+        while (words.next()) {
+            Assert.assertEquals(str.substring(words.getStart(), words.getEnd()),
+                    words.getWord());
+            result.add(words.getWord());
+        }
+        return result;
+    }
+
+    @Test
+    public void testSplit() {
+        Assert.assertEquals(Arrays.asList(), split(""));
+        Assert.assertEquals(Arrays.asList(), split(" \t "));
+        Assert.assertEquals(Arrays.asList("a"), split("a"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), split("  a\tb \n c  "));
+    }
+
+    /**
+     * Check against the regexes this replaced.
+     */
+    @Test
+    public void testMatchesRegex() {
+        for (String input: INPUTS) {
+            final String trimmed = input.trim();
+            final List<String> expected = trimmed.length() == 0
+                    ? Arrays.asList()
+                    : Arrays.asList(SPACES.split(trimmed));
+            Assert.assertEquals("\"" + input + "\"", expected, split(input));
+            Assert.assertEquals("\"" + input + "\"",
+                    SPACES.matcher(trimmed).replaceAll(" ").trim(),
+                    WhitespaceTokenizer.join(input, " "));
+            Assert.assertEquals("\"" + input + "\"",
+                    SPACES.matcher(trimmed).replaceAll(" \\\\\n  "),
+                    WhitespaceTokenizer.join(input, " \\\n  "));
+            Assert.assertEquals(expected.size(), WhitespaceTokenizer.count(input));
+        }
+    }
+
+    @Test
+    public void testJoinReturnsSame() {
+        final String str = "a b c";
+        Assert.assertSame(str, WhitespaceTokenizer.join(str, " "));
+        Assert.assertEquals("a b c", WhitespaceTokenizer.join("a b c ", " "));
+        Assert.assertEquals("a b c", WhitespaceTokenizer.join("a  b c", " "));
+        Assert.assertEquals("a b c", WhitespaceTokenizer.join(" a b c", " "));
+    }
+
+    @Test
+    public void testOneLinePerWord() {
+        Assert.assertEquals("a", Value.oneLinePerWord(new Str(" a "), null));
+        Assert.assertEquals("\\\n  a \\\n  b", Value.oneLinePerWord(new Str("a\t b"), null));
+        Assert.assertEquals("\\\n  a",
+                Value.oneLinePerWord(new Value(Arrays.asList(new Str("a"))), null));
+        Assert.assertEquals("",
+                Value.oneLinePerWord(new Value(VarType.LIST), null));
+    }
+}
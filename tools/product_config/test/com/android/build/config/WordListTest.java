@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class WordListTest {
+
+    private static WordList words(WordList.Pool pool, Position pos, String... words) {
+        final WordList.Builder builder = new WordList.Builder(pool);
+        for (String word: words) {
+            builder.add(word, pos);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testBuild() {
+        final WordList.Pool pool = new WordList.Pool();
+        final Position pos = new Position("a.mk", 3);
+        final WordList list = words(pool, pos, "x", "y", "x");
+
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals("y", list.getWord(1));
+        Assert.assertEquals(pos, list.getPosition(2));
+        Assert.assertEquals(pool.getWordId("x"), pool.getWordId(new String("x")));
+        Assert.assertEquals(Arrays.asList(new Str("x"), new Str("y"), new Str("x")),
+                list.toStrList());
+        Assert.assertSame(pool.empty(), new WordList.Builder(pool).build());
+    }
+
+    @Test
+    public void testConcat() {
+        final WordList.Pool pool = new WordList.Pool();
+        final Position posA = new Position("a.mk", 1);
+        final Position posB = new Position("b.mk", 2);
+        final WordList a = words(pool, posA, "a1", "a2");
+        final WordList b = words(pool, posB, "b1");
+
+        final WordList ab = a.concat(b);
+        Assert.assertEquals("a1 a2 b1", ab.join(" "));
+        Assert.assertEquals(posA, ab.getPosition(1));
+        Assert.assertEquals(posB, ab.getPosition(2));
+        Assert.assertEquals("b1 a1 a2", b.concat(a).join(" "));
+        Assert.assertSame(a, a.concat(pool.empty()));
+        Assert.assertSame(a, pool.empty().concat(a));
+        // The originals aren't changed.
+        Assert.assertEquals("a1 a2", a.join(" "));
+    }
+
+    @Test
+    public void testConcatOtherPool() {
+        final WordList.Pool pool = new WordList.Pool();
+        final WordList.Pool other = new WordList.Pool();
+        final Position pos = new Position("a.mk", 1);
+        final WordList list = words(pool, pos, "a").concat(words(other, pos, "b", "a"));
+
+        Assert.assertSame(pool, list.getPool());
+        Assert.assertEquals("a b a", list.join(" "));
+        Assert.assertEquals(pos, list.getPosition(1));
+    }
+
+    /**
+     * Appending one word at a time to a long list makes a very deep tree, which
+     * still has to be read without running out of stack.
+     */
+    @Test
+    public void testDeepAppend() {
+        final WordList.Pool pool = new WordList.Pool();
+        final Position pos = new Position("a.mk", 1);
+        final WordList shared = words(pool, pos, "s");
+        WordList list = pool.empty();
+        for (int i = 0; i < 100000; i++) {
+            list = list.concat(words(pool, pos, "w" + i)).concat(shared);
+        }
+
+        Assert.assertEquals(200000, list.size());
+        Assert.assertEquals("w0", list.getWord(0));
+        Assert.assertEquals("s", list.getWord(1));
+        Assert.assertEquals("w99999", list.getWord(199998));
+        Assert.assertEquals(200000, list.toStrList().size());
+    }
+
+    @Test
+    public void testValue() {
+        final WordList.Pool pool = new WordList.Pool();
+        final Position pos = new Position("a.mk", 4);
+        final Value value = new Value(words(pool, pos, "a", "b"));
+
+        Assert.assertEquals(VarType.LIST, value.getVarType());
+        Assert.assertEquals(2, value.getListSize());
+        Assert.assertEquals(Arrays.asList(new Str("a"), new Str("b")), value.getList());
+        Assert.assertEquals("a b", Value.normalize(value).toString());
+        Assert.assertEquals(pos, Value.normalize(value).getPosition());
+        Assert.assertEquals("", Value.normalize(new Value(pool.empty())).toString());
+        Assert.assertEquals("\\\n  a \\\n  b", Value.oneLinePerWord(value, null));
+    }
+}